@@ -0,0 +1,72 @@
+package cohDemoEditor.ragdollAnimator;
+
+/**
+ * A BoneTrackCursor remembers, for each bone, which key of a BoneTrackIndex
+ * was used by the previous lookup. During playback the requested times only
+ * move forward by a little, so the cursor usually finds the new key by
+ * stepping forward at most a few keys. Anything else (seeking backwards or
+ * jumping far ahead) falls back to a binary search.
+ *
+ * A BoneTrackCursor is bound to a single BoneTrackIndex. It is reset
+ * automatically whenever it is used with a different index. Cursors are not
+ * thread-safe; each thread that reads an index should use its own cursor.
+ */
+public class BoneTrackCursor {
+
+	/*
+	 * The number of keys we are willing to step through before giving up and
+	 * doing a binary search instead.
+	 */
+	private static final int MAX_STEPS = 4;
+
+	private BoneTrackIndex index;
+	private final int[] keys = new int[11];
+
+	/**
+	 * Creates a new BoneTrackCursor that is not yet bound to any index.
+	 */
+	public BoneTrackCursor() {
+	}
+
+	/**
+	 * Finds the last key of the given bone whose time is less than or equal to
+	 * the given time. This gives the same result as
+	 * {@link BoneTrackIndex#floorKey(int, long)}.
+	 *
+	 * @param index
+	 *            the index to search
+	 * @param boneNumber
+	 *            the number of the bone
+	 * @param time
+	 *            the time to search for
+	 * @return the index of the last key at or before time, or -1 if every key
+	 *         is after time
+	 */
+	public int floorKey(final BoneTrackIndex index, final int boneNumber,
+			final long time) {
+		if (this.index != index) {
+			this.index = index;
+			for (int i = 0; i < 11; i++) {
+				keys[i] = -1;
+			}
+		}
+		final int count = index.getKeyCount(boneNumber);
+		int key = keys[boneNumber];
+		if (key >= 0 && index.getTime(boneNumber, key) > time) {
+			// moved backwards
+			key = index.floorKey(boneNumber, time);
+		} else {
+			int steps = 0;
+			while (key + 1 < count && index.getTime(boneNumber, key + 1) <= time) {
+				if (++steps > MAX_STEPS) {
+					key = index.floorKey(boneNumber, time);
+					break;
+				}
+				key++;
+			}
+		}
+		keys[boneNumber] = key;
+		return key;
+	}
+
+}
@@ -0,0 +1,330 @@
+package cohDemoEditor.ragdollAnimator;
+
+import javax.vecmath.Vector4d;
+
+/**
+ * A BoneTrackIndex is a compiled, read-only snapshot of a KeyFrameGrid. For
+ * each bone, it stores the times of only those KeyFrames that set the bone,
+ * sorted in increasing order, along with the corresponding positions. Finding
+ * the KeyFrames that surround a given time is then a search over a primitive
+ * array instead of a walk through the linked KeyFrames of the grid.
+ *
+ * A BoneTrackIndex is never modified after it has been compiled, so a single
+ * index may be shared freely between threads. All interpolation happens here;
+ * any per-caller state lives in the BoneTrackCursor passed to the lookup
+ * methods, which speeds up sequential lookups during playback.
+ */
+public final class BoneTrackIndex {
+
+	/*
+	 * For each bone, the times of the KeyFrames that set that bone.
+	 */
+	private final long[][] times = new long[11][];
+
+	/*
+	 * For each bone, the x, y, z and w components of the bone position at the
+	 * corresponding time. The position of key k is stored at 4k through 4k+3.
+	 */
+	private final double[][] positions = new double[11][];
+
+	/*
+	 * The time of the last KeyFrame in the grid (whether or not it sets any
+	 * bones) and the modification count of the grid when it was compiled.
+	 */
+	private long endTime;
+	private int modificationCount;
+
+	/*
+	 * For each bone, the normalized ramp and the inverse duration of the
+	 * segment that ends at the corresponding key. These depend only on the two
+	 * keys, so they are computed once when the index is compiled. Entry 0 of
+	 * each array is unused.
+	 */
+	private final double[][] ramps = new double[11][];
+	private final double[][] inverseDurations = new double[11][];
+
+	/*
+	 * The easing applied to every segment of this index.
+	 */
+	private Easing easing;
+
+	private BoneTrackIndex() {
+	}
+
+	/**
+	 * Compiles a new BoneTrackIndex from the current contents of the given
+	 * KeyFrameGrid, using the default RAMP easing.
+	 *
+	 * @param grid
+	 *            the grid to compile
+	 * @return a new BoneTrackIndex
+	 */
+	public static BoneTrackIndex compile(final KeyFrameGrid grid) {
+		return compile(grid, Easing.RAMP);
+	}
+
+	/**
+	 * Compiles a new BoneTrackIndex from the current contents of the given
+	 * KeyFrameGrid.
+	 *
+	 * @param grid
+	 *            the grid to compile
+	 * @param easing
+	 *            the easing to apply between keys
+	 * @return a new BoneTrackIndex
+	 */
+	public static BoneTrackIndex compile(final KeyFrameGrid grid,
+			final Easing easing) {
+		if (grid == null || easing == null)
+			throw new IllegalArgumentException(
+					"Cannot compile a BoneTrackIndex from a null KeyFrameGrid or Easing.");
+		final BoneTrackIndex index = new BoneTrackIndex();
+		index.easing = easing;
+		index.modificationCount = grid.getModificationCount();
+		index.endTime = grid.last().getTime();
+		final int[] counts = new int[11];
+		for (KeyFrame kf : grid) {
+			for (int i = 0; i < 11; i++) {
+				if (kf.isPositionSet(i))
+					counts[i]++;
+			}
+		}
+		for (int i = 0; i < 11; i++) {
+			index.times[i] = new long[counts[i]];
+			index.positions[i] = new double[4 * counts[i]];
+			counts[i] = 0;
+		}
+		final Vector4d vector = new Vector4d();
+		for (KeyFrame kf : grid) {
+			for (int i = 0; i < 11; i++) {
+				if (kf.get(i, vector) == null)
+					continue;
+				final int key = counts[i]++;
+				index.times[i][key] = kf.getTime();
+				index.positions[i][4 * key] = vector.x;
+				index.positions[i][4 * key + 1] = vector.y;
+				index.positions[i][4 * key + 2] = vector.z;
+				index.positions[i][4 * key + 3] = vector.w;
+			}
+		}
+		for (int i = 0; i < 11; i++) {
+			final int count = index.times[i].length;
+			index.ramps[i] = new double[count];
+			index.inverseDurations[i] = new double[count];
+			for (int key = 1; key < count; key++) {
+				final long duration = index.times[i][key]
+						- index.times[i][key - 1];
+				index.ramps[i][key] = Easing.getRamp(duration,
+						index.positions[i][4 * key + 3]);
+				index.inverseDurations[i][key] = 1.0 / duration;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the number of KeyFrames that set the given bone.
+	 *
+	 * @param boneNumber
+	 *            the number of the bone
+	 * @return the number of keys in that bone's track
+	 */
+	public int getKeyCount(int boneNumber) {
+		return times[boneNumber].length;
+	}
+
+	/**
+	 * Returns the time of the given key in the given bone's track.
+	 *
+	 * @param boneNumber
+	 *            the number of the bone
+	 * @param key
+	 *            the index of the key within the bone's track
+	 * @return the time of that key
+	 */
+	public long getTime(int boneNumber, int key) {
+		return times[boneNumber][key];
+	}
+
+	/**
+	 * Returns one component of the position stored for the given key.
+	 *
+	 * @param boneNumber
+	 *            the number of the bone
+	 * @param key
+	 *            the index of the key within the bone's track
+	 * @param component
+	 *            0, 1, 2 or 3 for the x, y, z or w component respectively
+	 * @return the requested component
+	 */
+	public double getComponent(int boneNumber, int key, int component) {
+		return positions[boneNumber][4 * key + component];
+	}
+
+	/**
+	 * Finds the last key of the given bone whose time is less than or equal to
+	 * the given time using a binary search.
+	 *
+	 * @param boneNumber
+	 *            the number of the bone
+	 * @param time
+	 *            the time to search for
+	 * @return the index of the last key at or before time, or -1 if every key
+	 *         is after time
+	 */
+	public int floorKey(int boneNumber, long time) {
+		final long[] track = times[boneNumber];
+		int low = 0;
+		int high = track.length - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			if (track[mid] <= time) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high;
+	}
+
+	/**
+	 * Returns the modification count of the KeyFrameGrid at the time this index
+	 * was compiled.
+	 *
+	 * @return the modification count this index reflects
+	 */
+	public int getModificationCount() {
+		return modificationCount;
+	}
+
+	/**
+	 * Returns the easing applied between keys.
+	 *
+	 * @return the easing of this index
+	 */
+	public Easing getEasing() {
+		return easing;
+	}
+
+	/**
+	 * Returns the time of the last KeyFrame in the compiled grid.
+	 *
+	 * @return the end time of the animation
+	 */
+	public long getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * Returns the position of the given bone at the given time. If {@code
+	 * destination} is not null, the position data will be copied into {@code
+	 * destination}. Otherwise, a new copy of the position data will be
+	 * returned.
+	 *
+	 * @param boneNumber
+	 *            the number of the bone whose position should be retrieved
+	 * @param time
+	 *            the time to retrieve the position
+	 * @param destination
+	 *            a {@code Vector4d} in which to copy the position, or {@code
+	 *            null} to allocate a new one
+	 * @param cursor
+	 *            the caller's cursor, or {@code null} to use a binary search
+	 * @return the position of the given bone at the given time, or {@code
+	 *         null} if no KeyFrame sets the bone
+	 */
+	public Vector4d getPosition(int boneNumber, long time,
+			Vector4d destination, BoneTrackCursor cursor) {
+		if (getKeyCount(boneNumber) == 0) { // no key frame present
+			return null;
+		}
+		final int key = findKey(boneNumber, time, cursor);
+		final double value = getSegmentValue(boneNumber, key, time);
+		if (destination == null)
+			destination = new Vector4d();
+		if (value == 0) {
+			destination.set(getComponent(boneNumber, key, 0), getComponent(
+					boneNumber, key, 1), getComponent(boneNumber, key, 2),
+					getComponent(boneNumber, key, 3));
+		} else {
+			destination.set(interpolate(boneNumber, key, 0, value),
+					interpolate(boneNumber, key, 1, value), interpolate(
+							boneNumber, key, 2, value), interpolate(boneNumber,
+							key, 3, value));
+		}
+		return destination;
+	}
+
+	/**
+	 * Computes the pitch, yaw and roll of every bone at the given time in a
+	 * single pass. The angles of bone i are written to pose[3*i], pose[3*i+1]
+	 * and pose[3*i+2]. If {@code pose} is not null, no memory is allocated.
+	 *
+	 * @param time
+	 *            the time to retrieve the pose
+	 * @param pose
+	 *            an array of at least
+	 *            {@link FigurePositionInterpolator#POSE_LENGTH} doubles, or
+	 *            {@code null} to allocate a new one
+	 * @param cursor
+	 *            the caller's cursor, or {@code null} to use a binary search
+	 * @return the pose at the given time
+	 */
+	public double[] evaluatePose(long time, double[] pose,
+			BoneTrackCursor cursor) {
+		if (pose == null)
+			pose = new double[FigurePositionInterpolator.POSE_LENGTH];
+		for (int i = 0; i < 11; i++) {
+			if (getKeyCount(i) == 0) {
+				pose[3 * i] = pose[3 * i + 1] = pose[3 * i + 2] = 0;
+				continue;
+			}
+			final int key = findKey(i, time, cursor);
+			final double value = getSegmentValue(i, key, time);
+			for (int j = 0; j < 3; j++) {
+				pose[3 * i + j] = (value == 0) ? getComponent(i, key, j)
+						: interpolate(i, key, j, value);
+			}
+		}
+		return pose;
+	}
+
+	/*
+	 * Returns the key to interpolate from: the last key at or before time, or
+	 * the first key if time is before all of them.
+	 */
+	private int findKey(final int boneNumber, final long time,
+			final BoneTrackCursor cursor) {
+		final int key = (cursor == null) ? floorKey(boneNumber, time)
+				: cursor.floorKey(this, boneNumber, time);
+		return key < 0 ? 0 : key;
+	}
+
+	/*
+	 * Returns how far along we are from key to key+1 at the given time, with
+	 * the ramp of key+1 applied. Returns zero whenever the position of key
+	 * should be used as is: before the first key, exactly on a key, or after
+	 * the last key.
+	 */
+	private double getSegmentValue(final int boneNumber, final int key,
+			final long time) {
+		final long zeroTime = times[boneNumber][key];
+		if (key == times[boneNumber].length - 1 || time <= zeroTime) {
+			return 0;
+		}
+		return easing.ease((time - zeroTime)
+				* inverseDurations[boneNumber][key + 1],
+				ramps[boneNumber][key + 1]);
+	}
+
+	/*
+	 * Linear interpolation of one component between key and key+1. This is
+	 * the same calculation as Vector4d.interpolate.
+	 */
+	private double interpolate(final int boneNumber, final int key,
+			final int component, final double value) {
+		return (1 - value) * getComponent(boneNumber, key, component) + value
+				* getComponent(boneNumber, key + 1, component);
+	}
+
+}
@@ -0,0 +1,147 @@
+package cohDemoEditor.ragdollAnimator;
+
+/**
+ * An Easing maps the fraction of time elapsed between two KeyFrames to the
+ * fraction of the distance covered between them. All easings are pure
+ * functions with no state of their own.
+ *
+ * The ramp of a segment comes from the rampRatio stored with the later
+ * KeyFrame. {@link #getRamp(long, double)} converts a duration and rampRatio
+ * into a normalized ramp between 0 and 0.5, which is what the easings expect.
+ * Since the ramp depends only on the two KeyFrames, it can be computed once
+ * per segment and reused for every sample in that segment.
+ */
+public enum Easing {
+
+	/**
+	 * Constant velocity. The ramp is ignored.
+	 */
+	LINEAR {
+		@Override
+		public double ease(double fraction, double ramp) {
+			return fraction;
+		}
+	},
+
+	/**
+	 * Trapezoidal velocity: constant acceleration for the first ramp of the
+	 * segment, constant velocity in the middle and constant deceleration for
+	 * the last ramp. This is the same curve that a Java3D Alpha produces with
+	 * its increasing ramp duration set to the ramp, and it is the default.
+	 */
+	RAMP {
+		@Override
+		public double ease(double fraction, double ramp) {
+			if (ramp == 0) {
+				return fraction;
+			}
+			// peak velocity is 1/(1-ramp), reached after ramp
+			final double acceleration = 1 / (ramp - ramp * ramp);
+			if (fraction < ramp) {
+				return 0.5 * acceleration * fraction * fraction;
+			}
+			if (fraction < 1 - ramp) {
+				return 0.5 * acceleration * ramp * ramp + (fraction - ramp)
+						* acceleration * ramp;
+			}
+			final double remaining = 1 - fraction;
+			return 1 - 0.5 * acceleration * remaining * remaining;
+		}
+	},
+
+	/**
+	 * The smoothstep polynomial 3s^2-2s^3, blended with linear motion. A ramp
+	 * of 0 is linear and a ramp of 0.5 is pure smoothstep.
+	 */
+	SMOOTHSTEP {
+		@Override
+		public double ease(double fraction, double ramp) {
+			final double curve = fraction * fraction * (3 - 2 * fraction);
+			return blend(fraction, curve, ramp);
+		}
+	},
+
+	/**
+	 * A cubic ease-in/ease-out, blended with linear motion. A ramp of 0 is
+	 * linear and a ramp of 0.5 is the pure cubic curve.
+	 */
+	CUBIC {
+		@Override
+		public double ease(double fraction, double ramp) {
+			final double curve;
+			if (fraction < 0.5) {
+				curve = 4 * fraction * fraction * fraction;
+			} else {
+				final double f = 2 - 2 * fraction;
+				curve = 1 - 0.5 * f * f * f;
+			}
+			return blend(fraction, curve, ramp);
+		}
+	};
+
+	/**
+	 * Maps a fraction of elapsed time to a fraction of distance covered.
+	 *
+	 * @param fraction
+	 *            the fraction of the segment's duration that has elapsed,
+	 *            between 0 and 1
+	 * @param ramp
+	 *            the normalized ramp of the segment, between 0 and 0.5
+	 * @return the fraction of the distance covered, between 0 and 1
+	 */
+	public abstract double ease(double fraction, double ramp);
+
+	/**
+	 * Computes the eased value at time t of a segment in closed form. This is
+	 * the same as {@code ease((double) t / duration, getRamp(duration,
+	 * rampRatio))}.
+	 *
+	 * @param t
+	 *            the time elapsed since the start of the segment
+	 * @param duration
+	 *            the duration of the segment
+	 * @param rampRatio
+	 *            the rampRatio of the KeyFrame that ends the segment
+	 * @return the fraction of the distance covered at time t
+	 */
+	public double value(long t, long duration, double rampRatio) {
+		if (t <= 0 || duration <= 0) {
+			return 0;
+		}
+		if (t >= duration) {
+			return 1;
+		}
+		return ease((double) t / duration, getRamp(duration, rampRatio));
+	}
+
+	/**
+	 * Converts a rampRatio into a normalized ramp. The ramp duration is
+	 * truncated to whole milliseconds and limited to half the segment, exactly
+	 * as a Java3D Alpha does with its increasing ramp duration.
+	 *
+	 * @param duration
+	 *            the duration of the segment in milliseconds
+	 * @param rampRatio
+	 *            the rampRatio of the KeyFrame that ends the segment
+	 * @return the ramp as a fraction of the duration, between 0 and 0.5
+	 */
+	public static double getRamp(long duration, double rampRatio) {
+		if (duration <= 0) {
+			return 0;
+		}
+		final double ramp = (double) ((long) (duration * rampRatio)) / duration;
+		if (ramp < 0) {
+			return 0;
+		}
+		return ramp > 0.5 ? 0.5 : ramp;
+	}
+
+	/*
+	 * Mixes a curve with linear motion. A ramp of 0.5 gives the whole curve.
+	 */
+	private static double blend(double fraction, double curve, double ramp) {
+		final double weight = 2 * ramp;
+		return fraction + weight * (curve - fraction);
+	}
+
+}
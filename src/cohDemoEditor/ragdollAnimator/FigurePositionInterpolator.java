@@ -1,46 +1,101 @@
 package cohDemoEditor.ragdollAnimator;
 
-import javax.media.j3d.Alpha;
-import javax.vecmath.Tuple3i;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
 import javax.vecmath.Vector4d;
 
+import cohDemoEditor.ragdollAnimator.demo.DemoExporter;
+import cohDemoEditor.ragdollAnimator.demo.DemoWriter;
+import cohDemoEditor.ragdollAnimator.demo.ExportStatistics;
+
 /**
  * A FigurePositionInterpolator calculates the position of bones at arbitrary
- * times based on the data stored in a KeyFrameGrid. It assumes that the
- * KeyFrameGrid has correctly set the previous and next KeyFrame properties of
- * each Keyframe.
+ * times based on the data stored in a KeyFrameGrid. Lookups go through a
+ * BoneTrackIndex that is compiled from the grid after it is edited, on the
+ * thread that edits the grid (the event dispatch thread). Other threads, such
+ * as the Java3D behavior that plays the animation, never touch the grid
+ * itself; they only read the last index that was published.
+ * 
+ * Compiling takes time in proportion to the size of the grid, and a single
+ * edit may fire many events, so edits are never compiled one event at a time.
+ * The edits made on the event dispatch thread are compiled together once the
+ * current event has been handled. A grid edited on any other thread is
+ * compiled the next time that thread asks for the index.
  * 
  * @author Darren
  * 
  */
 public class FigurePositionInterpolator {
 
+	/**
+	 * The number of doubles in a pose: pitch, yaw and roll for each of the
+	 * eleven bones.
+	 */
+	public static final int POSE_LENGTH = 33;
+
 	/*
 	 * The grid to interpolate
 	 */
-	private KeyFrameGrid keyFrameGrid;
+	private volatile KeyFrameGrid keyFrameGrid;
 
 	/*
-	 * This keyframe is used by the getPosition method so we don't need to
-	 * allocate a new one every time that it's called.
+	 * The compiled per-bone tracks of the grid. An index is immutable, so it
+	 * can be handed to any thread once it has been published here.
 	 */
-	private transient KeyFrame keyFrame;
+	private volatile BoneTrackIndex boneTrackIndex;
 
 	/*
-	 * This alpha is used for interpolating between key frames. We use it for
-	 * ramp calculations only, not for timing.
+	 * How bones move between key frames.
 	 */
-	private Alpha alpha;
+	private volatile Easing easing = Easing.RAMP;
+
+	/*
+	 * True if the grid has been edited since the index was last compiled.
+	 */
+	private volatile boolean stale = false;
+
+	/*
+	 * The thread that last edited the grid, if it was not the event dispatch
+	 * thread.
+	 */
+	private volatile Thread editingThread;
+
+	/*
+	 * Marks the index stale once an edit of the grid is complete. The grid
+	 * fires its events on the thread that edits it, after the edit, and only
+	 * once for a whole transaction, but an edit of a single KeyFrame fires an
+	 * event for every cell it changes.
+	 */
+	private final TableModelListener gridListener = new TableModelListener() {
+		@Override
+		public void tableChanged(TableModelEvent e) {
+			if (!SwingUtilities.isEventDispatchThread()) {
+				editingThread = Thread.currentThread();
+				stale = true;
+			} else if (!stale) {
+				stale = true;
+				SwingUtilities.invokeLater(compileLater);
+			}
+		}
+	};
+
+	private final Runnable compileLater = new Runnable() {
+		@Override
+		public void run() {
+			if (stale)
+				compile();
+		}
+	};
 
 	/**
 	 * Creates a new FigurePositionInterpolator.
 	 */
 	public FigurePositionInterpolator() {
-		keyFrame = new KeyFrame();
-		alpha = new Alpha();
-		alpha.setMode(Alpha.INCREASING_ENABLE);
-		alpha.setStartTime(0L);
-		alpha.setPhaseDelayDuration(0L);
 	}
 
 	/**
@@ -60,36 +115,74 @@ public class FigurePositionInterpolator {
 	 * @return the position of the given bone at the given time
 	 */
 	public Vector4d getPosition(int boneNumber, long time, Vector4d destination) {
-		keyFrame.setTime(time);
-		KeyFrame next = keyFrameGrid.ceiling(keyFrame);
-		KeyFrame prev = keyFrameGrid.floor(keyFrame);
-		while (next != null && !next.isPositionSet(boneNumber)) {
-			next = next.getNextKeyFrame();
-		}
-		while (prev != null && !prev.isPositionSet(boneNumber)) {
-			prev = prev.getPrevKeyFrame();
-		}
-		if (next == null) {
-			if (prev == null) { // no key frame present
-				return null;
-			}
-			// after the last key frame
-			return prev.get(boneNumber, destination);
-		}
-		if (prev == null) {
-			// before the first key frame
-			return next.get(boneNumber, destination);
-		}
-		destination = prev.get(boneNumber, destination);
-		final Vector4d nextBP = next.get(boneNumber, null);
-		final double rampRatio = nextBP.getW();
-		final long zeroTime = prev.getTime();
-		final long duration = next.getTime() - zeroTime;
-		alpha.setIncreasingAlphaDuration(duration);
-		alpha.setIncreasingAlphaRampDuration((long) (duration * rampRatio));
-		final double value = alpha.value(time - zeroTime);
-		destination.interpolate(nextBP, value);
-		return destination;
+		return getBoneTrackIndex().getPosition(boneNumber, time, destination,
+				null);
+	}
+
+	/**
+	 * Computes the pitch, yaw and roll of every bone at the given time in a
+	 * single pass. The angles of bone i are written to pose[3*i], pose[3*i+1]
+	 * and pose[3*i+2]. The ramp ratios are not included. If {@code pose} is
+	 * not null, no memory is allocated.
+	 * 
+	 * @param time
+	 *            the time to retrieve the pose
+	 * @param pose
+	 *            an array of at least POSE_LENGTH doubles in which to store
+	 *            the pose. If this parameter is {@code null}, a new array will
+	 *            be allocated and returned
+	 * @return the pose at the given time
+	 */
+	public double[] evaluatePose(long time, double[] pose) {
+		return getBoneTrackIndex().evaluatePose(time, pose, null);
+	}
+
+	/**
+	 * Same as above, except that the caller supplies a cursor. Sequential calls
+	 * with increasing times are then much cheaper than independent lookups.
+	 * Each thread should use its own cursor.
+	 * 
+	 * @param time
+	 *            the time to retrieve the pose
+	 * @param pose
+	 *            an array of at least POSE_LENGTH doubles, or {@code null}
+	 * @param cursor
+	 *            the caller's cursor
+	 * @return the pose at the given time
+	 */
+	public double[] evaluatePose(long time, double[] pose,
+			BoneTrackCursor cursor) {
+		return getBoneTrackIndex().evaluatePose(time, pose, cursor);
+	}
+
+	/**
+	 * Returns the last BoneTrackIndex compiled from the KeyFrameGrid. This may
+	 * be called on any thread, and only touches the grid when called on the
+	 * thread that edits it (normally the event dispatch thread), where the
+	 * index is brought up to date first. Other threads may see an index that
+	 * lags behind the latest edits until that thread has compiled them. The
+	 * returned index never changes, so it can be used as a snapshot of the
+	 * animation (for example, to export while the figure keeps animating).
+	 * During a transaction on the grid, it does not include the edits made so
+	 * far until the transaction is committed.
+	 * 
+	 * @return the last BoneTrackIndex published
+	 */
+	public BoneTrackIndex getBoneTrackIndex() {
+		if (stale
+				&& (SwingUtilities.isEventDispatchThread() || Thread
+						.currentThread() == editingThread))
+			compile();
+		return boneTrackIndex;
+	}
+
+	/*
+	 * Compiles and publishes the index. Called on the thread that edits the
+	 * grid.
+	 */
+	private void compile() {
+		stale = false;
+		boneTrackIndex = BoneTrackIndex.compile(keyFrameGrid, easing);
 	}
 
 	/**
@@ -102,7 +195,9 @@ public class FigurePositionInterpolator {
 	}
 
 	/**
-	 * Simple setter. This property must be non-null.
+	 * Simple setter. This property must be non-null. This must be called on
+	 * the thread that edits the grid, since it compiles the grid straight
+	 * away.
 	 * 
 	 * @param keyFrameGrid
 	 *            the keyFrameGrid to set
@@ -111,11 +206,44 @@ public class FigurePositionInterpolator {
 		if (keyFrameGrid == null)
 			throw new IllegalArgumentException(
 					"A FigurePositionInterpolator cannot have a null KeyFrameGrid.");
+		if (this.keyFrameGrid != null)
+			this.keyFrameGrid.removeTableModelListener(gridListener);
 		this.keyFrameGrid = keyFrameGrid;
+		keyFrameGrid.addTableModelListener(gridListener);
+		compile();
+	}
+
+	/**
+	 * Simple getter.
+	 * 
+	 * @return the easing used between key frames
+	 */
+	public final Easing getEasing() {
+		return easing;
+	}
+
+	/**
+	 * Sets how bones move between key frames. The default is Easing.RAMP,
+	 * which honors the rampRatio of each key frame. This property must be
+	 * non-null. Like setKeyFrameGrid, this must be called on the thread that
+	 * edits the grid.
+	 * 
+	 * @param easing
+	 *            the easing to set
+	 */
+	public final void setEasing(Easing easing) {
+		if (easing == null)
+			throw new IllegalArgumentException(
+					"A FigurePositionInterpolator cannot have a null Easing.");
+		this.easing = easing;
+		if (keyFrameGrid != null)
+			compile();
 	}
 
 	/**
 	 * Generates the EntRagdoll commands corresponding to the set animation.
+	 * The whole export is held in memory; prefer the streaming version for
+	 * long animations.
 	 * 
 	 * @param timePerStep
 	 * @param ref
@@ -124,53 +252,121 @@ public class FigurePositionInterpolator {
 	 */
 	public String exportAnimation(final int timePerStep, final int ref,
 			final long argTime) {
-		final StringBuilder sb = new StringBuilder();
-		final long endTime = keyFrameGrid
-				.get(keyFrameGrid.getColumnCount() - 2).getTime();
-		Vector4d vector = new Vector4d();
-		for (long time = 1; time < endTime + timePerStep; time += timePerStep) {
-			if (time == 1) {
-				sb.append("1");
-			} else {
-				sb.append(timePerStep);
-			}
-			sb.append(" ").append(ref).append(" EntRagdoll 11 ");
-			sb.append(argTime + 3 * (time + timePerStep)).append(" ").append(
-					argTime + 3 * (time)).append(" ");
-			for (int i = 0; i < 11; i++) {
-				// TODO export keyframes explicitly
-				vector = getPosition(i, time, vector);
-				Tuple3i tuple = KeyFrame.radiansToCoH(vector);
-				appendHexString(tuple.getX(), sb);
-				appendHexString(tuple.getY(), sb);
-				appendHexString(tuple.getZ(), sb);
-			}
-			sb.append("\n");
-			sb.append("0 ").append(ref).append(" Chat 10 0 \"").append(time).append("\"\n");
-		}
-		return sb.toString();
+		return exportAnimation(getBoneTrackIndex(), timePerStep, ref, argTime);
 	}
 
 	/**
-	 * Formats an angle as a 8-char hex string. Used for exporting to .cohdemo
-	 * format.
+	 * Generates the EntRagdoll commands for a previously compiled index. This
+	 * does not touch the KeyFrameGrid or any state of the interpolator, so it
+	 * may run on any thread.
 	 * 
-	 * @param angle
+	 * @param index
+	 *            the snapshot of the animation to export
+	 * @param timePerStep
+	 * @param ref
+	 * @param argTime
 	 * @return
 	 */
-	private static void appendHexString(int cohAngle,
-			final StringBuilder destination) {
-		while (cohAngle < 0) {
-			cohAngle += 1024;
-		}
-		while (cohAngle > 1024) {
-			cohAngle -= 1024;
+	public static String exportAnimation(final BoneTrackIndex index,
+			final int timePerStep, final int ref, final long argTime) {
+		final StringWriter writer = new StringWriter();
+		try {
+			final DemoWriter out = new DemoWriter(writer);
+			new DemoExporter(timePerStep, ref, argTime).export(index, out);
+			out.flush();
+		} catch (IOException e) {
+			// a StringWriter never throws
+			throw new RuntimeException(e);
 		}
-		final String str = Integer.toHexString(cohAngle).toUpperCase();
-		for (int i = 0; i < 8 - str.length(); i++) {
-			destination.append("0");
-		}
-		destination.append(str);
+		return writer.toString();
+	}
+
+	/**
+	 * Streams the EntRagdoll commands corresponding to the set animation to
+	 * the given DemoWriter. Memory use does not depend on the length of the
+	 * animation. The DemoWriter is flushed but not closed.
+	 * 
+	 * @param timePerStep
+	 * @param ref
+	 * @param argTime
+	 * @param out
+	 *            the destination
+	 * @throws IOException
+	 *             if the destination cannot be written
+	 */
+	public void exportAnimation(final int timePerStep, final int ref,
+			final long argTime, final DemoWriter out) throws IOException {
+		new DemoExporter(timePerStep, ref, argTime).export(getBoneTrackIndex(),
+				out);
+		out.flush();
+	}
+
+	/**
+	 * Same as above, except that the commands are formatted in parallel on the
+	 * given pool. The output is identical to the sequential export.
+	 * 
+	 * @param timePerStep
+	 * @param ref
+	 * @param argTime
+	 * @param out
+	 *            the destination
+	 * @param pool
+	 *            the pool that formats the commands
+	 * @throws IOException
+	 *             if the destination cannot be written
+	 */
+	public void exportAnimation(final int timePerStep, final int ref,
+			final long argTime, final DemoWriter out, final ForkJoinPool pool)
+			throws IOException {
+		new DemoExporter(timePerStep, ref, argTime).export(getBoneTrackIndex(),
+				out, pool);
+		out.flush();
+	}
+
+	/**
+	 * Same as above, except that samples whose pose does not change are left
+	 * out. See {@link DemoExporter#exportChanges(BoneTrackIndex, DemoWriter)}.
+	 * 
+	 * @param timePerStep
+	 * @param ref
+	 * @param argTime
+	 * @param out
+	 *            the destination
+	 * @return how many lines and bytes were written and saved
+	 * @throws IOException
+	 *             if the destination cannot be written
+	 */
+	public ExportStatistics exportChanges(final int timePerStep,
+			final int ref, final long argTime, final DemoWriter out)
+			throws IOException {
+		final ExportStatistics statistics = new DemoExporter(timePerStep, ref,
+				argTime).exportChanges(getBoneTrackIndex(), out);
+		out.flush();
+		return statistics;
+	}
+
+	/**
+	 * Same as above, except that samples are placed adaptively. See
+	 * {@link DemoExporter#exportAdaptive(BoneTrackIndex, DemoWriter, double)}.
+	 * 
+	 * @param timePerStep
+	 * @param ref
+	 * @param argTime
+	 * @param out
+	 *            the destination
+	 * @param tolerance
+	 *            the largest error allowed, in CoH angle units
+	 * @return how many lines and bytes were written and saved
+	 * @throws IOException
+	 *             if the destination cannot be written
+	 */
+	public ExportStatistics exportAdaptive(final int timePerStep,
+			final int ref, final long argTime, final DemoWriter out,
+			final double tolerance) throws IOException {
+		final ExportStatistics statistics = new DemoExporter(timePerStep, ref,
+				argTime).exportAdaptive(getBoneTrackIndex(), out, tolerance);
+		out.flush();
+		return statistics;
 	}
 
 }
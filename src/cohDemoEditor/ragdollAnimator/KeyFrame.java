@@ -16,6 +16,11 @@ import cohDemoEditor.ragdollAnimator.bind.BoneXmlAdapter;
  * determines how much smoothing to use when transforming from the previous
  * KeyFrame to this KeyFrame.
  * 
+ * The positions are packed into a single array of doubles, four to a bone, with
+ * one bit for each bone that is set. This keeps a KeyFrame down to a few
+ * objects no matter how many of its bones are set. Use isPositionSet,
+ * getComponent and get(int, Vector4d) to read a position without copying it.
+ * 
  * For convenience, we also store pointers to the previous and next KeyFrames.
  * This allows interpolators to more quickly compute interpolations when there
  * are unset BonePositions.
@@ -46,14 +51,19 @@ public class KeyFrame extends AbstractList<Vector4d> implements
 
 	@XmlAttribute(name = "time")
 	private long time = 0L;
-	@XmlJavaTypeAdapter(BoneXmlAdapter.class)
-	private Vector4d[] positions = new Vector4d[11];
+	// x, y, z and rampRatio of each bone, in order; unset bones are all zero
+	private final double[] positions = new double[44];
+	// bit n is set if bone n is set
+	private int setBones;
 	private KeyFrame prevKeyFrame, nextKeyFrame;
 
-	// Listener fields
-	private Set<TableModelListener> listeners = new HashSet<TableModelListener>();
-	private Set<TableModelListener> listenersToAdd = new HashSet<TableModelListener>();
-	private Set<TableModelListener> listenersToRemove = new HashSet<TableModelListener>();
+	// Listener fields. These compare listeners by identity, since the
+	// KeyFrameGrid listens to each of its KeyFrames and hashing a grid means
+	// hashing every KeyFrame in it. They are only created when needed, since
+	// most KeyFrames only ever have the one listener.
+	private Set<TableModelListener> listeners;
+	private Set<TableModelListener> listenersToAdd;
+	private Set<TableModelListener> listenersToRemove;
 	private boolean firingListeners = false;
 
 	/**
@@ -86,7 +96,49 @@ public class KeyFrame extends AbstractList<Vector4d> implements
 	 * @return true if the specified bone has a position, false otherwise
 	 */
 	public boolean isPositionSet(int boneNumber) {
-		return positions[boneNumber] != null;
+		if (boneNumber < 0 || boneNumber >= 11)
+			throw new ArrayIndexOutOfBoundsException(boneNumber);
+		return (setBones & (1 << boneNumber)) != 0;
+	}
+
+	/**
+	 * Determines if the given bone is set with a rampRatio greater than zero.
+	 * Unlike get, this does not copy the position.
+	 *
+	 * @param boneNumber
+	 *            the number of the bone to check
+	 * @return true if the bone is set and ramped, false otherwise
+	 */
+	public boolean isRamped(int boneNumber) {
+		return positions[4 * boneNumber + 3] > 0;
+	}
+
+	/**
+	 * Returns the rampRatio of the given bone without copying its position.
+	 *
+	 * @param boneNumber
+	 *            the number of the bone
+	 * @return the rampRatio of the bone, or 0 if it is not set
+	 */
+	public double getRampRatio(int boneNumber) {
+		return positions[4 * boneNumber + 3];
+	}
+
+	/**
+	 * Returns one component of the position of the given bone without copying
+	 * the position.
+	 *
+	 * @param boneNumber
+	 *            the number of the bone
+	 * @param component
+	 *            0, 1, 2 or 3 for x, y, z or rampRatio
+	 * @return the component, or 0 if the bone is not set
+	 */
+	public double getComponent(int boneNumber, int component) {
+		if (component < 0 || component >= 4)
+			throw new IllegalArgumentException("There is no component "
+					+ component);
+		return positions[4 * boneNumber + component];
 	}
 
 	/**
@@ -97,7 +149,9 @@ public class KeyFrame extends AbstractList<Vector4d> implements
 	 * @return this
 	 */
 	public KeyFrame unSetPosition(int boneNumber) {
-		positions[boneNumber] = null;
+		isPositionSet(boneNumber);
+		setBones &= ~(1 << boneNumber);
+		Arrays.fill(positions, 4 * boneNumber, 4 * boneNumber + 4, 0);
 		fireTableModelListeners(new TableModelEvent(this, boneNumber + 1));
 		return this;
 	}
@@ -188,9 +242,7 @@ public class KeyFrame extends AbstractList<Vector4d> implements
 	 */
 	@Override
 	public Vector4d get(int index) {
-		if (positions[index] == null)
-			return null;
-		return new Vector4d(positions[index]);
+		return get(index, null);
 	}
 
 	/**
@@ -207,12 +259,12 @@ public class KeyFrame extends AbstractList<Vector4d> implements
 	 *         not been set
 	 */
 	public Vector4d get(int index, Vector4d destination) {
-		if (positions[index] == null)
+		if (!isPositionSet(index))
 			return null;
 		if (destination == null)
-			destination = new Vector4d(positions[index]);
-		else
-			destination.set(positions[index]);
+			destination = new Vector4d();
+		destination.set(positions[4 * index], positions[4 * index + 1],
+				positions[4 * index + 2], positions[4 * index + 3]);
 		return destination;
 	}
 
@@ -236,13 +288,51 @@ public class KeyFrame extends AbstractList<Vector4d> implements
 	 */
 	@Override
 	public Vector4d set(int index, Vector4d position) {
-		final Vector4d toReturn = positions[index];
-		positions[index] = new Vector4d(position);
+		final Vector4d toReturn = get(index);
+		store(index, position.x, position.y, position.z, position.w);
 		final TableModelEvent evt = new TableModelEvent(this, index + 1);
 		fireTableModelListeners(evt);
 		return toReturn;
 	}
 
+	private void store(int boneNumber, double x, double y, double z, double w) {
+		positions[4 * boneNumber] = x;
+		positions[4 * boneNumber + 1] = y;
+		positions[4 * boneNumber + 2] = z;
+		positions[4 * boneNumber + 3] = w;
+		setBones |= 1 << boneNumber;
+	}
+
+	/*
+	 * The positions of the bones as an array of Vector4ds with nulls for
+	 * unset bones, which is how they are written to XML.
+	 */
+	@SuppressWarnings("unused")
+	@XmlElement(name = "positions")
+	@XmlJavaTypeAdapter(BoneXmlAdapter.class)
+	private Vector4d[] getPositions() {
+		final Vector4d[] array = new Vector4d[11];
+		for (int i = 0; i < 11; i++) {
+			array[i] = get(i);
+		}
+		return array;
+	}
+
+	@SuppressWarnings("unused")
+	private void setPositions(Vector4d[] array) {
+		setBones = 0;
+		Arrays.fill(positions, 0);
+		for (int i = 0; i < 11; i++) {
+			if (array[i] != null)
+				store(i, array[i].x, array[i].y, array[i].z, array[i].w);
+		}
+	}
+
+	private static Set<TableModelListener> newListenerSet() {
+		return Collections.newSetFromMap(new IdentityHashMap<TableModelListener, Boolean>(
+				2));
+	}
+
 	/**
 	 * Fires all listeners using the specified event.
 	 * 
@@ -251,15 +341,21 @@ public class KeyFrame extends AbstractList<Vector4d> implements
 	 *            TableModelListener
 	 */
 	protected void fireTableModelListeners(TableModelEvent event) {
+		if (listeners == null)
+			return;
 		firingListeners = true;
 		for (TableModelListener l : listeners) {
 			l.tableChanged(event);
 		}
 		firingListeners = false;
-		listeners.removeAll(listenersToRemove);
-		listenersToRemove.clear();
-		listeners.addAll(listenersToAdd);
-		listenersToAdd.clear();
+		if (listenersToRemove != null) {
+			listeners.removeAll(listenersToRemove);
+			listenersToRemove = null;
+		}
+		if (listenersToAdd != null) {
+			listeners.addAll(listenersToAdd);
+			listenersToAdd = null;
+		}
 	}
 
 	/**
@@ -271,8 +367,12 @@ public class KeyFrame extends AbstractList<Vector4d> implements
 	@Override
 	public void addTableModelListener(TableModelListener l) {
 		if (!firingListeners) {
+			if (listeners == null)
+				listeners = newListenerSet();
 			listeners.add(l);
 		} else {
+			if (listenersToAdd == null)
+				listenersToAdd = newListenerSet();
 			listenersToAdd.add(l);
 		}
 	}
@@ -347,12 +447,14 @@ public class KeyFrame extends AbstractList<Vector4d> implements
 				return time;
 			return null;
 		}
-		if (positions[rowIndex - 1] == null) {
+		final int bone = rowIndex - 1;
+		if (!isPositionSet(bone)) {
 			if (columnIndex == 0)
-				return SHORT_BONE_NAMES[rowIndex - 1];
+				return SHORT_BONE_NAMES[bone];
 			return null;
 		}
-		Tuple3i tuple = radiansToCoH(positions[rowIndex - 1]);
+		Tuple3i tuple = radiansToCoH(positions[4 * bone],
+				positions[4 * bone + 1], positions[4 * bone + 2]);
 		switch (columnIndex) {
 		case 0:
 			return SHORT_BONE_NAMES[rowIndex-1];
@@ -363,7 +465,7 @@ public class KeyFrame extends AbstractList<Vector4d> implements
 		case 3:
 			return tuple.getZ();
 		case 4:
-			return positions[rowIndex - 1].getW();
+			return positions[4 * bone + 3];
 		}
 		return null;
 	}
@@ -388,8 +490,11 @@ public class KeyFrame extends AbstractList<Vector4d> implements
 	@Override
 	public void removeTableModelListener(TableModelListener l) {
 		if (!firingListeners) {
-			listeners.remove(l);
+			if (listeners != null)
+				listeners.remove(l);
 		} else {
+			if (listenersToRemove == null)
+				listenersToRemove = newListenerSet();
 			listenersToRemove.add(l);
 		}
 	}
@@ -415,9 +520,10 @@ public class KeyFrame extends AbstractList<Vector4d> implements
 			setTime(time);
 			return;
 		}
+		final int bone = rowIndex - 1;
 		final TableModelEvent evt;
-		if (positions[rowIndex - 1] == null) {
-			positions[rowIndex - 1] = new Vector4d();
+		if (!isPositionSet(bone)) {
+			store(bone, 0, 0, 0, 0);
 			evt = new TableModelEvent(this, rowIndex);
 		} else {
 			evt = new TableModelEvent(this, rowIndex, rowIndex, columnIndex,
@@ -425,7 +531,8 @@ public class KeyFrame extends AbstractList<Vector4d> implements
 		}
 		if (columnIndex < 4) {
 			int input = ((Integer) value).intValue();
-			Tuple3i tuple = radiansToCoH(positions[rowIndex - 1]);
+			Tuple3i tuple = radiansToCoH(positions[4 * bone],
+					positions[4 * bone + 1], positions[4 * bone + 2]);
 			switch (columnIndex) {
 			case 1:
 				tuple.setX(input);
@@ -437,11 +544,10 @@ public class KeyFrame extends AbstractList<Vector4d> implements
 				tuple.setZ(input);
 				break;
 			}
-			final double w = positions[rowIndex-1].getW();
-			positions[rowIndex - 1] = coHToRadians(tuple);
-			positions[rowIndex - 1].setW(w);
+			final Vector4d angles = coHToRadians(tuple);
+			store(bone, angles.x, angles.y, angles.z, positions[4 * bone + 3]);
 		} else {
-			positions[rowIndex - 1].setW(((Double) value).doubleValue());
+			positions[4 * bone + 3] = ((Double) value).doubleValue();
 		}
 		fireTableModelListeners(evt);
 	}
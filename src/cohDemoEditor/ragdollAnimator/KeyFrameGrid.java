@@ -20,6 +20,10 @@ import static cohDemoEditor.ragdollAnimator.KeyFrame.LONG_BONE_NAMES;
  * of the key frame time, then symbols to indicate whether the key frame is set
  * or not.
  * 
+ * Columns are looked up in a balanced tree that counts the KeyFrames below
+ * each node, so finding the KeyFrame in a column, or the column of a KeyFrame,
+ * takes logarithmic time however long the animation is.
+ * 
  * @author Darren
  * 
  */
@@ -32,7 +36,7 @@ public class KeyFrameGrid extends TreeSet<KeyFrame> implements TableModel,
 
 	@XmlElementWrapper(name="keyframes")
 	@XmlElements(@XmlElement(name="keyframe", type=KeyFrame.class))
-	private ArrayList<KeyFrame> indexList = new ArrayList<KeyFrame>();
+	private KeyFrameIndex indexList = new KeyFrameIndex();
 	private final static String FIRST_COLUMN_NAME = "Key Frame";
 
 	// Listener fields
@@ -40,19 +44,77 @@ public class KeyFrameGrid extends TreeSet<KeyFrame> implements TableModel,
 	private Set<TableModelListener> listenersToAdd = new HashSet<TableModelListener>();
 	private Set<TableModelListener> listenersToRemove = new HashSet<TableModelListener>();
 	private boolean firingListeners = false;
+	private List<KeyFrameGridListener> gridListeners = new ArrayList<KeyFrameGridListener>();
+
+	// incremented on every change to the grid or to one of its KeyFrames
+	private volatile int modificationCount = 0;
+
+	// Transaction fields. While a transaction is open, TableModelEvents are
+	// merged into these instead of being fired.
+	private int transactionDepth = 0;
+	private boolean pendingStructureChange = false;
+	private int pendingFirstRow = Integer.MAX_VALUE;
+	private int pendingLastRow = -1;
+	private int pendingFirstColumn = Integer.MAX_VALUE;
+	private int pendingLastColumn = -1;
+	private boolean pendingAllColumns = false;
+
+	// a change that turns more "---" cells than this on or off repaints the
+	// whole row instead of firing an event for each cell
+	private static final int MAX_CELL_EVENTS = 32;
+
+	// The last KeyFrame that sets each bone, or null if none does. A KeyFrame
+	// before the last key of a bone shows "---" where it leaves the bone unset.
+	private final KeyFrame[] lastKeys = new KeyFrame[11];
+
+	// the column last looked up by getValueAt, which a JTable asks for in order
+	private int cursorIndex = -1;
+	private KeyFrame cursorKeyFrame;
 
 	/**
 	 * Creates a new KeyFrameGrid. The KeyFrameGrid will contain one KeyFrame at
 	 * time zero with all bone angles set to zero.
 	 */
 	public KeyFrameGrid() {
+		add(createFirstKeyFrame());
+	}
+
+	/**
+	 * Creates a new KeyFrameGrid containing the given KeyFrames, which may be
+	 * in any order. If none of them is at time zero, a KeyFrame at time zero
+	 * with all bone angles set to zero is added. As with add, a KeyFrame at
+	 * the same time as an earlier one is ignored.
+	 * 
+	 * This is much faster than adding the KeyFrames one at a time: they are
+	 * sorted once and linked in a single pass.
+	 * 
+	 * @param frames
+	 *            the KeyFrames of the new grid
+	 */
+	public KeyFrameGrid(Collection<? extends KeyFrame> frames) {
+		final TreeSet<KeyFrame> sorted = new TreeSet<KeyFrame>(frames);
+		if (!sorted.isEmpty() && sorted.first().getTime() < 0)
+			throw new IllegalArgumentException(
+					"A KeyFrameGrid cannot contain negative times.");
+		if (sorted.isEmpty() || sorted.first().getTime() != 0)
+			sorted.add(createFirstKeyFrame());
+		// an empty TreeSet copies a SortedSet without comparing again
+		super.addAll(sorted);
+		relink();
+		for (KeyFrame kf : indexList) {
+			kf.addTableModelListener(this);
+		}
+		modificationCount++;
+	}
+
+	private static KeyFrame createFirstKeyFrame() {
 		final KeyFrame kf = new KeyFrame();
 		kf.setTime(0L);
 		final Vector4d defaultVector = new Vector4d(0, 0, 0, 0);
 		for (int i = 0; i < 11; i++) {
 			kf.set(i, defaultVector);
 		}
-		add(kf);
+		return kf;
 	}
 
 	/**
@@ -85,7 +147,6 @@ public class KeyFrameGrid extends TreeSet<KeyFrame> implements TableModel,
 		if (changed) {
 			final KeyFrame previous = this.lower(kf);
 			final KeyFrame next = this.higher(kf);
-			int index = indexList.size();
 			if (previous != null) {
 				kf.setPrevKeyFrame(previous);
 				previous.setNextKeyFrame(kf);
@@ -93,15 +154,28 @@ public class KeyFrameGrid extends TreeSet<KeyFrame> implements TableModel,
 			if (next != null) {
 				kf.setNextKeyFrame(next);
 				next.setPrevKeyFrame(kf);
-				index = indexList.indexOf(next);
 			}
-			indexList.add(index, kf);
+			indexList.insert(kf);
+			cursorIndex = -1;
+			for (int bone = 0; bone < 11; bone++) {
+				if (kf.isPositionSet(bone))
+					keySet(kf, bone);
+			}
+			kf.addTableModelListener(this);
+			modificationCount++;
+			if (!gridListeners.isEmpty()) {
+				for (KeyFrameGridListener l : getGridListeners()) {
+					l.keyFrameAdded(this, kf);
+				}
+			}
 		}
 		return changed;
 	}
 
 	/**
-	 * Adds all KeyFrames in the given collection to this KeyFrameGrid
+	 * Adds all KeyFrames in the given collection to this KeyFrameGrid. The
+	 * KeyFrames are inserted first and the grid is then linked in a single
+	 * pass, so adding many KeyFrames at once costs little more than adding one.
 	 * 
 	 * @param c
 	 *            a Collection of KeyFrames to add to this KeyFrameGrid
@@ -109,15 +183,80 @@ public class KeyFrameGrid extends TreeSet<KeyFrame> implements TableModel,
 	 */
 	@Override
 	public boolean addAll(Collection<? extends KeyFrame> c) {
-		boolean changed = false;
+		final List<KeyFrame> added = new ArrayList<KeyFrame>();
 		for (KeyFrame kf : c) {
-			changed = addHelper(kf);
+			if (super.add(kf))
+				added.add(kf);
 		}
-		if (changed) {
-			fireTableModelListeners(new TableModelEvent(this,
-					TableModelEvent.HEADER_ROW));
+		if (added.isEmpty())
+			return false;
+		relink();
+		for (KeyFrame kf : added) {
+			kf.addTableModelListener(this);
 		}
-		return changed;
+		modificationCount++;
+		if (!gridListeners.isEmpty()) {
+			for (KeyFrame kf : added) {
+				for (KeyFrameGridListener l : getGridListeners()) {
+					l.keyFrameAdded(this, kf);
+				}
+			}
+		}
+		fireTableModelListeners(new TableModelEvent(this,
+				TableModelEvent.HEADER_ROW));
+		return true;
+	}
+
+	/*
+	 * Rebuilds the previous and next KeyFrames of every KeyFrame, and the index
+	 * list, from the order of the set.
+	 */
+	private void relink() {
+		final List<KeyFrame> sorted = new ArrayList<KeyFrame>(size());
+		KeyFrame previous = null;
+		for (KeyFrame kf : this) {
+			kf.setPrevKeyFrame(previous);
+			if (previous != null)
+				previous.setNextKeyFrame(kf);
+			sorted.add(kf);
+			previous = kf;
+		}
+		if (previous != null)
+			previous.setNextKeyFrame(null);
+		indexList.build(sorted);
+		cursorIndex = -1;
+		Arrays.fill(lastKeys, null);
+		for (KeyFrame kf : sorted) {
+			for (int bone = 0; bone < 11; bone++) {
+				if (kf.isPositionSet(bone))
+					lastKeys[bone] = kf;
+			}
+		}
+	}
+
+	/*
+	 * Updates the last key of a bone that the given KeyFrame has just set.
+	 */
+	private void keySet(final KeyFrame kf, final int bone) {
+		if (lastKeys[bone] == null
+				|| kf.getTime() > lastKeys[bone].getTime())
+			lastKeys[bone] = kf;
+	}
+
+	/*
+	 * Updates the last key of a bone after the given KeyFrame has stopped
+	 * setting it, searching back from before. Only the last key itself needs
+	 * a search, which ends at the previous key of the bone.
+	 */
+	private void keyUnset(final KeyFrame kf, final KeyFrame before,
+			final int bone) {
+		if (lastKeys[bone] != kf)
+			return;
+		KeyFrame key = before;
+		while (key != null && !key.isPositionSet(bone)) {
+			key = key.getPrevKeyFrame();
+		}
+		lastKeys[bone] = key;
 	}
 
 	/**
@@ -157,7 +296,18 @@ public class KeyFrameGrid extends TreeSet<KeyFrame> implements TableModel,
 			if (next != null) {
 				next.setPrevKeyFrame(prev);
 			}
-			indexList.remove(o);
+			indexList.delete((KeyFrame) o);
+			cursorIndex = -1;
+			for (int bone = 0; bone < 11; bone++) {
+				keyUnset((KeyFrame) o, prev, bone);
+			}
+			((KeyFrame) o).removeTableModelListener(this);
+			modificationCount++;
+			if (!gridListeners.isEmpty()) {
+				for (KeyFrameGridListener l : getGridListeners()) {
+					l.keyFrameRemoved(this, (KeyFrame) o);
+				}
+			}
 		}
 		return changed;
 	}
@@ -202,6 +352,74 @@ public class KeyFrameGrid extends TreeSet<KeyFrame> implements TableModel,
 		return changed;
 	}
 
+	/**
+	 * Starts a transaction. Until the matching call to commit, no
+	 * TableModelEvents are fired; instead they are merged, and the smallest set
+	 * of events that covers them all is fired on commit. This saves the tables
+	 * showing this grid from repainting after every edit of a large scripted
+	 * change. KeyFrameGridListeners are still told of every edit as it
+	 * happens.
+	 * 
+	 * Transactions may be nested, in which case the events are fired when the
+	 * outermost transaction is committed. Each call to begin should be
+	 * followed by a call to commit in a finally block.
+	 */
+	public void begin() {
+		transactionDepth++;
+	}
+
+	/**
+	 * Ends the transaction started by the last call to begin, and fires the
+	 * merged TableModelEvents if it was the outermost transaction.
+	 * 
+	 * @throws IllegalStateException
+	 *             if there is no transaction to commit
+	 */
+	public void commit() {
+		if (transactionDepth == 0)
+			throw new IllegalStateException(
+					"Cannot commit without a transaction.");
+		if (--transactionDepth > 0)
+			return;
+		final boolean structureChanged = pendingStructureChange;
+		final int firstRow = pendingFirstRow;
+		final int lastRow = pendingLastRow;
+		final int firstColumn = pendingFirstColumn;
+		final int lastColumn = pendingLastColumn;
+		final boolean allColumns = pendingAllColumns;
+		pendingStructureChange = false;
+		pendingFirstRow = Integer.MAX_VALUE;
+		pendingLastRow = -1;
+		pendingFirstColumn = Integer.MAX_VALUE;
+		pendingLastColumn = -1;
+		pendingAllColumns = false;
+		if (structureChanged) {
+			// the columns themselves changed, which covers every cell
+			fireTableModelListeners(new TableModelEvent(this,
+					TableModelEvent.HEADER_ROW));
+		} else if (lastRow < 0) {
+			return;
+		} else if (allColumns
+				|| lastColumn - firstColumn >= MAX_CELL_EVENTS) {
+			fireTableModelListeners(new TableModelEvent(this, firstRow,
+					lastRow));
+		} else {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				fireTableModelListeners(new TableModelEvent(this, firstRow,
+						lastRow, column));
+			}
+		}
+	}
+
+	/**
+	 * Returns whether a transaction is open.
+	 * 
+	 * @return true between a call to begin and its matching commit
+	 */
+	public boolean isInTransaction() {
+		return transactionDepth > 0;
+	}
+
 	/**
 	 * Calls tableChanged(event) on all registered listeners. Any changes to the
 	 * stored listeners are postponed until all registered listeners have fired.
@@ -210,10 +428,32 @@ public class KeyFrameGrid extends TreeSet<KeyFrame> implements TableModel,
 	 * of the fired event will still receive notification of the event if they
 	 * have not already been notified.
 	 * 
+	 * During a transaction the event is merged into the events to fire on
+	 * commit instead.
+	 * 
 	 * @param event
 	 *            the TableModelEvent to pass to the listeners
 	 */
 	protected void fireTableModelListeners(TableModelEvent event) {
+		if (transactionDepth > 0) {
+			if (event.getFirstRow() == TableModelEvent.HEADER_ROW) {
+				pendingStructureChange = true;
+			} else {
+				pendingFirstRow = Math.min(pendingFirstRow, event
+						.getFirstRow());
+				pendingLastRow = Math.max(pendingLastRow, Math.min(event
+						.getLastRow(), getRowCount() - 1));
+				if (event.getColumn() == TableModelEvent.ALL_COLUMNS) {
+					pendingAllColumns = true;
+				} else {
+					pendingFirstColumn = Math.min(pendingFirstColumn, event
+							.getColumn());
+					pendingLastColumn = Math.max(pendingLastColumn, event
+							.getColumn());
+				}
+			}
+			return;
+		}
 		firingListeners = true;
 		for (TableModelListener l : listeners) {
 			l.tableChanged(event);
@@ -241,6 +481,36 @@ public class KeyFrameGrid extends TreeSet<KeyFrame> implements TableModel,
 		}
 	}
 
+	/**
+	 * Registers a KeyFrameGridListener to be told which KeyFrames are added,
+	 * removed and edited.
+	 * 
+	 * @param l
+	 *            the KeyFrameGridListener to register
+	 */
+	public void addKeyFrameGridListener(KeyFrameGridListener l) {
+		gridListeners.add(l);
+	}
+
+	/**
+	 * Unregisters the given KeyFrameGridListener.
+	 * 
+	 * @param l
+	 *            the KeyFrameGridListener to unregister
+	 */
+	public void removeKeyFrameGridListener(KeyFrameGridListener l) {
+		gridListeners.remove(l);
+	}
+
+	/*
+	 * Copies the KeyFrameGridListeners, so that they may be added or removed
+	 * while they are being fired.
+	 */
+	private KeyFrameGridListener[] getGridListeners() {
+		return gridListeners.toArray(new KeyFrameGridListener[gridListeners
+				.size()]);
+	}
+
 	/**
 	 * Returns String.class. Used by a JTable to determine the class to use for
 	 * rendering and editing.
@@ -308,33 +578,52 @@ public class KeyFrameGrid extends TreeSet<KeyFrame> implements TableModel,
 				return "Time";
 			return LONG_BONE_NAMES[rowIndex - 1];
 		}
+		if (columnIndex > indexList.size())
+			return null;
+		final KeyFrame kf = getKeyFrameAt(columnIndex - 1);
 		// first row is times
-		if (rowIndex == 0 && columnIndex < indexList.size()+1) {
-			return indexList.get(columnIndex - 1).getTime();
+		if (rowIndex == 0) {
+			return kf.getTime();
 		}
 		// second column = first key frame = all bones set
 		if (columnIndex == 1) {
 			return " X-";
 		}
 		// all other columns: are bones set?
-		if (rowIndex > 0) {
-			final int boneIndex = rowIndex - 1;
-			KeyFrame kf = indexList.get(columnIndex - 1);
-			if (kf != null && kf.isPositionSet(boneIndex)) {
-				if (kf.get(boneIndex).getW() > 0) {
-					return "->X";
-				}
-				return "--X";
+		final int boneIndex = rowIndex - 1;
+		if (kf.isPositionSet(boneIndex)) {
+			if (kf.isRamped(boneIndex)) {
+				return "->X";
 			}
-			while (kf != null && !kf.isPositionSet(boneIndex)) {
-				kf = kf.getNextKeyFrame();
-			}
-			if (kf != null)
-				return "---";
+			return "--X";
 		}
+		if (isSetAfter(kf, boneIndex))
+			return "---";
 		return null;
 	}
 
+	/*
+	 * Returns the KeyFrame at the given index. Neighbouring columns are
+	 * reached through the next and previous KeyFrames of the last one looked
+	 * up, so painting a table costs constant time per cell.
+	 */
+	private KeyFrame getKeyFrameAt(final int index) {
+		KeyFrame kf = null;
+		if (cursorIndex >= 0) {
+			if (index == cursorIndex)
+				kf = cursorKeyFrame;
+			else if (index == cursorIndex + 1)
+				kf = cursorKeyFrame.getNextKeyFrame();
+			else if (index == cursorIndex - 1)
+				kf = cursorKeyFrame.getPrevKeyFrame();
+		}
+		if (kf == null)
+			kf = indexList.get(index);
+		cursorIndex = index;
+		cursorKeyFrame = kf;
+		return kf;
+	}
+
 	/**
 	 * Returns whether a cell is editable. The only editable cells are in row 0
 	 * with columnIndex>1. These cells contain the times of all KeyFrames except
@@ -395,10 +684,8 @@ public class KeyFrameGrid extends TreeSet<KeyFrame> implements TableModel,
 			if (next != null && newTime >= next.getTime()) {
 				return;
 			}
+			// the KeyFrame's event updates the cell
 			kf.setTime(newTime);
-			final TableModelEvent evt = new TableModelEvent(this, 0, 0,
-					columnIndex, TableModelEvent.UPDATE);
-			fireTableModelListeners(evt);
 		} catch (NumberFormatException nfe) {
 			nfe.printStackTrace();
 		}
@@ -417,22 +704,120 @@ public class KeyFrameGrid extends TreeSet<KeyFrame> implements TableModel,
 	}
 
 	/**
-	 * A KeyFrameGrid listens to a KeyFrame to determine when edits have been
-	 * made. The rows of a KeyFrameGrid are the same as the rows of a KeyFrame
-	 * (time+11bones), so a change in rows of a KeyFrame cause a corresponding
-	 * update of the rows in a KeyFrameGrid.
+	 * Returns the index of the KeyFrame at the same time as the given
+	 * KeyFrame, or -1 if there is none.
+	 * 
+	 * @param kf
+	 *            the KeyFrame to look for
+	 * @return the index of the KeyFrame, or -1
+	 */
+	public int indexOf(KeyFrame kf) {
+		return indexList.indexOf(kf);
+	}
+
+	/**
+	 * Returns the last KeyFrame at or before the given time, or null if there
+	 * is none.
+	 * 
+	 * @param time
+	 *            the time to look for
+	 * @return the KeyFrame at or before time
+	 */
+	public KeyFrame floor(long time) {
+		return indexList.floor(time);
+	}
+
+	/**
+	 * Returns the first KeyFrame at or after the given time, or null if there
+	 * is none.
+	 * 
+	 * @param time
+	 *            the time to look for
+	 * @return the KeyFrame at or after time
+	 */
+	public KeyFrame ceiling(long time) {
+		return indexList.ceiling(time);
+	}
+
+	/**
+	 * Returns a counter that changes whenever a KeyFrame is added to or removed
+	 * from this grid, or whenever one of its KeyFrames is edited. Callers that
+	 * cache data derived from this grid can compare counts to decide whether
+	 * their cache is stale.
+	 * 
+	 * @return the current modification count
+	 */
+	public int getModificationCount() {
+		return modificationCount;
+	}
+
+	/**
+	 * A KeyFrameGrid listens to each of its KeyFrames to determine when edits
+	 * have been made. The rows of a KeyFrameGrid are the same as the rows of a KeyFrame
+	 * (time+11bones), so a change in a row of a KeyFrame updates the cell in
+	 * that row of the KeyFrame's column.
+	 * 
+	 * Setting or unsetting a bone can also change the "---" cells before it,
+	 * which show whether a later KeyFrame sets that bone. Those cells are only
+	 * updated when no later KeyFrame sets the bone, since otherwise they show
+	 * "---" either way.
 	 * 
 	 * @param e
 	 *            the TableModelEvent describing which KeyFrame has been edited
 	 */
 	@Override
 	public void tableChanged(TableModelEvent e) {
-		final Object kf = e.getSource();
-		final int index = indexList.indexOf(kf);
+		final Object source = e.getSource();
+		final int index = indexList.indexOf(source);
 		if (index < 0)
 			return;
-		fireTableModelListeners(new TableModelEvent(this, e.getFirstRow(), e
-				.getLastRow()));
+		final KeyFrame kf = (KeyFrame) source;
+		modificationCount++;
+		if (!gridListeners.isEmpty()) {
+			for (KeyFrameGridListener l : getGridListeners()) {
+				l.keyFrameChanged(this, kf, e.getFirstRow());
+			}
+		}
+		final int row = e.getFirstRow();
+		final int column = index + 1;
+		if (row != e.getLastRow() || row < 0 || row >= getRowCount()) {
+			fireTableModelListeners(new TableModelEvent(this, e.getFirstRow(),
+					e.getLastRow()));
+			return;
+		}
+		if (row > 0) {
+			if (kf.isPositionSet(row - 1))
+				keySet(kf, row - 1);
+			else
+				keyUnset(kf, kf.getPrevKeyFrame(), row - 1);
+		}
+		int firstColumn = column;
+		if (row > 0 && index > 0 && !isSetAfter(kf, row - 1)) {
+			// the unset cells back to the previous key of this bone
+			// (the first column always reads " X-")
+			for (KeyFrame previous = kf.getPrevKeyFrame(); previous
+					.getPrevKeyFrame() != null
+					&& !previous.isPositionSet(row - 1)
+					&& column - firstColumn < MAX_CELL_EVENTS; previous = previous
+					.getPrevKeyFrame()) {
+				firstColumn--;
+			}
+		}
+		if (column - firstColumn >= MAX_CELL_EVENTS) {
+			fireTableModelListeners(new TableModelEvent(this, row, row));
+			return;
+		}
+		for (int c = column; c >= firstColumn; c--) {
+			fireTableModelListeners(new TableModelEvent(this, row, row, c));
+		}
+	}
+
+	/*
+	 * Returns whether any KeyFrame after the given one sets the given bone.
+	 */
+	private boolean isSetAfter(final KeyFrame kf, final int bone) {
+		return lastKeys[bone] != null
+				&& lastKeys[bone].getTime() > kf.getTime();
 	}
 
 }
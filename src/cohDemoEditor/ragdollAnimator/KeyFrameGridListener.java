@@ -0,0 +1,46 @@
+package cohDemoEditor.ragdollAnimator;
+
+import java.util.EventListener;
+
+/**
+ * A KeyFrameGridListener is told exactly which KeyFrame of a KeyFrameGrid has
+ * been added, removed or edited. The TableModelEvents fired by a KeyFrameGrid
+ * only describe which cells of the table need repainting, which is not enough
+ * to repeat the edit somewhere else.
+ */
+public interface KeyFrameGridListener extends EventListener {
+
+	/**
+	 * Called after a KeyFrame has been added to the grid.
+	 *
+	 * @param grid
+	 *            the grid that changed
+	 * @param kf
+	 *            the KeyFrame that was added
+	 */
+	void keyFrameAdded(KeyFrameGrid grid, KeyFrame kf);
+
+	/**
+	 * Called after a KeyFrame has been removed from the grid.
+	 *
+	 * @param grid
+	 *            the grid that changed
+	 * @param kf
+	 *            the KeyFrame that was removed
+	 */
+	void keyFrameRemoved(KeyFrameGrid grid, KeyFrame kf);
+
+	/**
+	 * Called after a KeyFrame in the grid has been edited.
+	 *
+	 * @param grid
+	 *            the grid that changed
+	 * @param kf
+	 *            the KeyFrame that was edited
+	 * @param row
+	 *            0 if the time of the KeyFrame changed, or the number of the
+	 *            bone that changed plus one
+	 */
+	void keyFrameChanged(KeyFrameGrid grid, KeyFrame kf, int row);
+
+}
@@ -0,0 +1,285 @@
+package cohDemoEditor.ragdollAnimator;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A KeyFrameIndex is a list of KeyFrames kept in order of time, stored as a
+ * balanced binary tree in which every node knows the size of its subtree.
+ * That lets it find the KeyFrame at a column, the column of a KeyFrame, and
+ * the KeyFrame at or around a time, and insert and delete KeyFrames, all in
+ * time proportional to the log of the number of KeyFrames.
+ *
+ * The times of the KeyFrames may change while they are in the index, as long
+ * as their order does not.
+ */
+final class KeyFrameIndex extends AbstractList<KeyFrame> implements
+		RandomAccess {
+
+	private static final class Node {
+		final KeyFrame kf;
+		Node left, right;
+		int height = 1;
+		int size = 1;
+
+		Node(KeyFrame kf) {
+			this.kf = kf;
+		}
+	}
+
+	private Node root;
+
+	/**
+	 * Returns the KeyFrame at the given position.
+	 */
+	@Override
+	public KeyFrame get(int index) {
+		if (index < 0 || index >= size())
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+					+ size());
+		Node node = root;
+		while (true) {
+			final int leftSize = size(node.left);
+			if (index < leftSize) {
+				node = node.left;
+			} else if (index == leftSize) {
+				return node.kf;
+			} else {
+				index -= leftSize + 1;
+				node = node.right;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of KeyFrames in this index.
+	 */
+	@Override
+	public int size() {
+		return size(root);
+	}
+
+	/**
+	 * Returns the position of the KeyFrame equal to the given object, that
+	 * is, the KeyFrame with the same time, or -1 if there is none.
+	 */
+	@Override
+	public int indexOf(Object o) {
+		if (!(o instanceof KeyFrame))
+			return -1;
+		final long time = ((KeyFrame) o).getTime();
+		Node node = root;
+		int rank = 0;
+		while (node != null) {
+			final long nodeTime = node.kf.getTime();
+			if (time < nodeTime) {
+				node = node.left;
+			} else if (time > nodeTime) {
+				rank += size(node.left) + 1;
+				node = node.right;
+			} else {
+				return node.kf.equals(o) ? rank + size(node.left) : -1;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		return indexOf(o);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return indexOf(o) >= 0;
+	}
+
+	/**
+	 * Returns the KeyFrame with the greatest time less than or equal to the
+	 * given time, or null if there is none.
+	 *
+	 * @param time
+	 *            the time to look for
+	 * @return the KeyFrame at or before time
+	 */
+	public KeyFrame floor(long time) {
+		Node node = root;
+		KeyFrame best = null;
+		while (node != null) {
+			if (node.kf.getTime() <= time) {
+				best = node.kf;
+				node = node.right;
+			} else {
+				node = node.left;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the KeyFrame with the least time greater than or equal to the
+	 * given time, or null if there is none.
+	 *
+	 * @param time
+	 *            the time to look for
+	 * @return the KeyFrame at or after time
+	 */
+	public KeyFrame ceiling(long time) {
+		Node node = root;
+		KeyFrame best = null;
+		while (node != null) {
+			if (node.kf.getTime() >= time) {
+				best = node.kf;
+				node = node.left;
+			} else {
+				node = node.right;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Inserts a KeyFrame in order of time. The index must not already contain
+	 * a KeyFrame at the same time.
+	 *
+	 * @param kf
+	 *            the KeyFrame to insert
+	 */
+	public void insert(KeyFrame kf) {
+		root = insert(root, kf);
+	}
+
+	/**
+	 * Deletes the KeyFrame at the time of the given KeyFrame, if there is one.
+	 *
+	 * @param kf
+	 *            the KeyFrame to delete
+	 */
+	public void delete(KeyFrame kf) {
+		root = delete(root, kf.getTime());
+	}
+
+	/**
+	 * Replaces the contents of this index with the given KeyFrames, which must
+	 * already be in order of increasing time. This takes linear time.
+	 *
+	 * @param sorted
+	 *            the KeyFrames in order
+	 */
+	public void build(List<KeyFrame> sorted) {
+		root = build(sorted, 0, sorted.size());
+	}
+
+	@Override
+	public void clear() {
+		root = null;
+	}
+
+	private static Node build(final List<KeyFrame> sorted, final int from,
+			final int to) {
+		if (from >= to)
+			return null;
+		final int mid = (from + to) >>> 1;
+		final Node node = new Node(sorted.get(mid));
+		node.left = build(sorted, from, mid);
+		node.right = build(sorted, mid + 1, to);
+		update(node);
+		return node;
+	}
+
+	private static Node insert(final Node node, final KeyFrame kf) {
+		if (node == null)
+			return new Node(kf);
+		if (kf.getTime() < node.kf.getTime())
+			node.left = insert(node.left, kf);
+		else
+			node.right = insert(node.right, kf);
+		return balance(node);
+	}
+
+	private static Node delete(final Node node, final long time) {
+		if (node == null)
+			return null;
+		final long nodeTime = node.kf.getTime();
+		if (time < nodeTime) {
+			node.left = delete(node.left, time);
+		} else if (time > nodeTime) {
+			node.right = delete(node.right, time);
+		} else {
+			if (node.left == null)
+				return node.right;
+			if (node.right == null)
+				return node.left;
+			// replace this node with the first node of the right subtree
+			Node successor = node.right;
+			while (successor.left != null) {
+				successor = successor.left;
+			}
+			final Node replacement = new Node(successor.kf);
+			replacement.left = node.left;
+			replacement.right = deleteFirst(node.right);
+			return balance(replacement);
+		}
+		return balance(node);
+	}
+
+	private static Node deleteFirst(final Node node) {
+		if (node.left == null)
+			return node.right;
+		node.left = deleteFirst(node.left);
+		return balance(node);
+	}
+
+	private static int size(final Node node) {
+		return (node == null) ? 0 : node.size;
+	}
+
+	private static int height(final Node node) {
+		return (node == null) ? 0 : node.height;
+	}
+
+	private static void update(final Node node) {
+		node.height = Math.max(height(node.left), height(node.right)) + 1;
+		node.size = size(node.left) + size(node.right) + 1;
+	}
+
+	/*
+	 * Restores the AVL balance of a node whose subtrees differ in height by at
+	 * most two, and updates its height and size.
+	 */
+	private static Node balance(final Node node) {
+		final int difference = height(node.left) - height(node.right);
+		if (difference > 1) {
+			if (height(node.left.left) < height(node.left.right))
+				node.left = rotateLeft(node.left);
+			return rotateRight(node);
+		}
+		if (difference < -1) {
+			if (height(node.right.right) < height(node.right.left))
+				node.right = rotateRight(node.right);
+			return rotateLeft(node);
+		}
+		update(node);
+		return node;
+	}
+
+	private static Node rotateRight(final Node node) {
+		final Node left = node.left;
+		node.left = left.right;
+		left.right = node;
+		update(node);
+		update(left);
+		return left;
+	}
+
+	private static Node rotateLeft(final Node node) {
+		final Node right = node.right;
+		node.right = right.left;
+		right.left = node;
+		update(node);
+		update(right);
+		return right;
+	}
+
+}
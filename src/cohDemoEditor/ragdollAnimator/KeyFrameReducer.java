@@ -0,0 +1,205 @@
+package cohDemoEditor.ragdollAnimator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.vecmath.Vector4d;
+
+/**
+ * A KeyFrameReducer replaces a densely sampled animation, such as one read
+ * from a demo, with as few KeyFrames as it can. Each bone is reduced on its
+ * own, so a bone only keeps the keys where it actually changes direction, and
+ * is left unset on every other KeyFrame.
+ *
+ * A segment between two samples fits if interpolating between them, with one
+ * of the RAMP_RATIOS, reproduces every sample in between within the
+ * tolerance. Starting from the first sample, each bone keeps the furthest
+ * sample that still fits and then starts again from there. The furthest fit is
+ * found by doubling the length of the segment until it no longer fits and
+ * then searching back with a binary search, so a segment of n samples costs
+ * about n log n, and a whole track close to linear time.
+ */
+public class KeyFrameReducer {
+
+	/**
+	 * The rampRatios tried for each segment, in order of preference.
+	 */
+	public static final double[] RAMP_RATIOS = { 0, 0.25, 0.5 };
+
+	private final double tolerance;
+	private final Easing easing;
+
+	/**
+	 * Creates a new KeyFrameReducer for the default RAMP easing.
+	 *
+	 * @param tolerance
+	 *            the largest error allowed, in CoH angle units
+	 */
+	public KeyFrameReducer(double tolerance) {
+		this(tolerance, Easing.RAMP);
+	}
+
+	/**
+	 * Creates a new KeyFrameReducer.
+	 *
+	 * @param tolerance
+	 *            the largest error allowed, in CoH angle units
+	 * @param easing
+	 *            the easing the reduced animation will be played back with
+	 */
+	public KeyFrameReducer(double tolerance, Easing easing) {
+		if (tolerance < 0 || easing == null)
+			throw new IllegalArgumentException(
+					"A KeyFrameReducer needs a non-negative tolerance and an Easing.");
+		this.tolerance = tolerance * Math.PI / 512;
+		this.easing = easing;
+	}
+
+	/**
+	 * Reduces the given animation. The source is not modified.
+	 *
+	 * @param source
+	 *            the animation to reduce
+	 * @return a new KeyFrameGrid with the reduced animation
+	 */
+	public KeyFrameGrid reduce(KeyFrameGrid source) {
+		return reduce(BoneTrackIndex.compile(source));
+	}
+
+	/**
+	 * Reduces the animation compiled into the given index. Every key of each
+	 * bone is treated as a sample to be reproduced.
+	 *
+	 * @param source
+	 *            the animation to reduce
+	 * @return a new KeyFrameGrid with the reduced animation
+	 */
+	public KeyFrameGrid reduce(BoneTrackIndex source) {
+		final Map<Long, KeyFrame> frames = new HashMap<Long, KeyFrame>();
+		final KeyFrame first = new KeyFrame();
+		final Vector4d vector = new Vector4d();
+		for (int bone = 0; bone < 11; bone++) {
+			first.set(bone, vector);
+		}
+		frames.put(0L, first);
+		for (int bone = 0; bone < 11; bone++) {
+			final int count = source.getKeyCount(bone);
+			if (count == 0)
+				continue;
+			if (source.getTime(bone, 0) > 0) {
+				// hold the first key back to time 0, as the source does
+				setKey(source, bone, 0, 0, first, vector);
+			}
+			setKey(source, bone, 0, 0, getFrame(frames, source
+					.getTime(bone, 0)), vector);
+
+			int start = 0;
+			while (start < count - 1) {
+				// gallop ahead while the segment still fits, then binary
+				// search between the last end that fit and the first that
+				// did not
+				int good = start + 1;
+				double goodRampRatio = 0;
+				int bad = count;
+				for (int step = 2; start + step < count; step *= 2) {
+					final double rampRatio = findRampRatio(source, bone, start,
+							start + step);
+					if (rampRatio < 0) {
+						bad = start + step;
+						break;
+					}
+					good = start + step;
+					goodRampRatio = rampRatio;
+				}
+				while (bad - good > 1) {
+					final int mid = (good + bad) >>> 1;
+					final double rampRatio = findRampRatio(source, bone, start,
+							mid);
+					if (rampRatio < 0) {
+						bad = mid;
+					} else {
+						good = mid;
+						goodRampRatio = rampRatio;
+					}
+				}
+				setKey(source, bone, good, goodRampRatio, getFrame(frames,
+						source.getTime(bone, good)), vector);
+				start = good;
+			}
+		}
+		return new KeyFrameGrid(frames.values());
+	}
+
+	/*
+	 * Returns the first of the RAMP_RATIOS with which every key between start
+	 * and end is reproduced within the tolerance, or -1 if there is none.
+	 */
+	private double findRampRatio(final BoneTrackIndex source, final int bone,
+			final int start, final int end) {
+		for (double rampRatio : RAMP_RATIOS) {
+			if (getError(source, bone, start, end, rampRatio, tolerance) <= tolerance)
+				return rampRatio;
+			if (easing == Easing.LINEAR)
+				break;
+		}
+		return -1;
+	}
+
+	/*
+	 * Returns the largest error of any key between start and end when
+	 * interpolating between them with the given rampRatio. Stops early once
+	 * the error exceeds the given limit.
+	 */
+	private double getError(final BoneTrackIndex source, final int bone,
+			final int start, final int end, final double rampRatio,
+			final double limit) {
+		final long startTime = source.getTime(bone, start);
+		final long duration = source.getTime(bone, end) - startTime;
+		double worstError = 0;
+		for (int key = start + 1; key < end && worstError <= limit; key++) {
+			final double value = easing.value(source.getTime(bone, key)
+					- startTime, duration, rampRatio);
+			worstError = Math.max(worstError, getError(source, bone, start,
+					end, key, value));
+		}
+		return worstError;
+	}
+
+	/*
+	 * Returns how far key strays from the interpolation between start and end
+	 * at the given eased value, in the worst of the three angles.
+	 */
+	private static double getError(final BoneTrackIndex source,
+			final int bone, final int start, final int end, final int key,
+			final double value) {
+		double error = 0;
+		for (int c = 0; c < 3; c++) {
+			final double interpolated = (1 - value)
+					* source.getComponent(bone, start, c) + value
+					* source.getComponent(bone, end, c);
+			error = Math.max(error, Math.abs(source.getComponent(bone, key, c)
+					- interpolated));
+		}
+		return error;
+	}
+
+	private static KeyFrame getFrame(final Map<Long, KeyFrame> frames,
+			final long time) {
+		KeyFrame kf = frames.get(time);
+		if (kf == null) {
+			kf = new KeyFrame();
+			kf.setTime(time);
+			frames.put(time, kf);
+		}
+		return kf;
+	}
+
+	private static void setKey(final BoneTrackIndex source, final int bone,
+			final int key, final double rampRatio, final KeyFrame kf,
+			final Vector4d vector) {
+		vector.set(source.getComponent(bone, key, 0), source.getComponent(
+				bone, key, 1), source.getComponent(bone, key, 2), rampRatio);
+		kf.set(bone, vector);
+	}
+
+}
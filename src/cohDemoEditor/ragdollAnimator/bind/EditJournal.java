@@ -0,0 +1,570 @@
+package cohDemoEditor.ragdollAnimator.bind;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.vecmath.Vector4d;
+
+import cohDemoEditor.ragdollAnimator.KeyFrame;
+import cohDemoEditor.ragdollAnimator.KeyFrameGrid;
+import cohDemoEditor.ragdollAnimator.KeyFrameGridListener;
+
+/**
+ * An EditJournal autosaves a KeyFrameGrid by appending a short record for
+ * each edit to a journal file, instead of saving the whole animation again.
+ * Every so often the journal is compacted: the grid is written out as a
+ * snapshot and a new, empty journal is started. The work done per edit is
+ * therefore constant, however large the animation is.
+ *
+ * Records are encoded on the thread that edits the grid and written by a
+ * background thread, which syncs the journal to disk whenever it runs out of
+ * records to write. Each record carries a checksum, so a record torn by a
+ * crash is recognised and ignored when the journal is replayed.
+ *
+ * The directory holds pairs of files, {@code snapshot-<n>.ragdoll} in
+ * {@link KeyFrameBinaryFormat} and {@code journal-<n>.log}. A new pair is only
+ * used once both of its files exist, and the old pair is only deleted after
+ * that, so there is always a complete pair to recover from.
+ */
+public final class EditJournal implements KeyFrameGridListener {
+
+	/**
+	 * The first four bytes of every journal.
+	 */
+	public static final int MAGIC = 0x524A4E4C; // "RJNL"
+
+	/**
+	 * The version written by this class.
+	 */
+	public static final short VERSION = 1;
+
+	/**
+	 * The journal is never compacted before it is this large.
+	 */
+	public static final long MIN_COMPACT_SIZE = 256 * 1024;
+
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String JOURNAL_PREFIX = "journal-";
+	private static final String JOURNAL_EXTENSION = ".log";
+	private static final String FAILED_PREFIX = "failed-";
+
+	private static final byte ADD = 1;
+	private static final byte REMOVE = 2;
+	private static final byte TIME = 3;
+	private static final byte SET = 4;
+	private static final byte UNSET = 5;
+
+	private final File directory;
+	private final KeyFrameGrid grid;
+
+	// the time each KeyFrame had when it was last recorded, so that a time
+	// change can name the KeyFrame it moved
+	private final Map<KeyFrame, Long> times = new IdentityHashMap<KeyFrame, Long>();
+
+	private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(
+			64);
+	private final DataOutputStream record = new DataOutputStream(recordBytes);
+	private final Vector4d vector = new Vector4d();
+
+	private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+	private final ExecutorService writer = new ThreadPoolExecutor(1, 1, 0,
+			TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "Edit journal");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private long generation;
+	private long journalSize;
+	private long snapshotSize;
+
+	// only used by the writer thread
+	private FileOutputStream journalFile;
+	private DataOutputStream journal;
+	private volatile IOException error;
+
+	/**
+	 * Creates a new EditJournal that records every edit of the given grid. A
+	 * snapshot of the grid is written straight away, and earlier snapshots and
+	 * journals in the directory are deleted once it has been.
+	 *
+	 * This must be called on the thread that edits the grid.
+	 *
+	 * @param directory
+	 *            the directory to keep the snapshots and journals in
+	 * @param grid
+	 *            the grid to record
+	 * @throws IOException
+	 *             if the directory cannot be created
+	 */
+	public EditJournal(File directory, KeyFrameGrid grid) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create " + directory + ".");
+		this.directory = directory;
+		this.grid = grid;
+		generation = Math.max(findGeneration(directory, SNAPSHOT_PREFIX,
+				KeyFrameBinaryFormat.EXTENSION), findGeneration(directory,
+				JOURNAL_PREFIX, JOURNAL_EXTENSION));
+		for (KeyFrame kf : grid) {
+			times.put(kf, kf.getTime());
+		}
+		compact();
+		grid.addKeyFrameGridListener(this);
+	}
+
+	/**
+	 * Recovers the grid recorded in the given directory, by reading the latest
+	 * complete snapshot and replaying its journal.
+	 *
+	 * @param directory
+	 *            the directory the snapshots and journals are kept in
+	 * @return the recovered grid, or {@code null} if there is nothing to
+	 *         recover
+	 * @throws IOException
+	 *             if the snapshot or journal cannot be read, or the journal
+	 *             does not fit the snapshot
+	 */
+	public static KeyFrameGrid recover(File directory) throws IOException {
+		// a journal is only started once its snapshot has been written
+		final long latest = findGeneration(directory, JOURNAL_PREFIX,
+				JOURNAL_EXTENSION);
+		if (latest == 0 || !getSnapshotFile(directory, latest).isFile())
+			return null;
+		final KeyFrameGrid grid = KeyFrameBinaryFormat.read(getSnapshotFile(
+				directory, latest), null);
+		replay(getJournalFile(directory, latest), latest, grid);
+		return grid;
+	}
+
+	/**
+	 * Moves every snapshot and journal in the given directory into a new
+	 * subdirectory named {@code failed-<time>}. A new EditJournal deletes the
+	 * snapshots and journals it finds, so this must be done first when recover
+	 * fails, to keep the files that could not be recovered.
+	 *
+	 * @param directory
+	 *            the directory the snapshots and journals are kept in
+	 * @return the subdirectory the files were moved to, or {@code null} if
+	 *         there were none
+	 * @throws IOException
+	 *             if a file cannot be moved
+	 */
+	public static File setAside(File directory) throws IOException {
+		final File[] files = directory.listFiles();
+		if (files == null)
+			return null;
+		final File aside = new File(directory, FAILED_PREFIX
+				+ System.currentTimeMillis());
+		boolean moved = false;
+		for (File file : files) {
+			final String name = file.getName();
+			if (!file.isFile()
+					|| !(name.startsWith(SNAPSHOT_PREFIX) || name
+							.startsWith(JOURNAL_PREFIX)))
+				continue;
+			if (!aside.isDirectory() && !aside.mkdir())
+				throw new IOException("Cannot create " + aside + ".");
+			if (!file.renameTo(new File(aside, name)))
+				throw new IOException("Cannot move " + file + " to " + aside
+						+ ".");
+			moved = true;
+		}
+		return moved ? aside : null;
+	}
+
+	/**
+	 * Writes a new snapshot and starts a new journal. This happens on its own
+	 * once the journal is larger than the last snapshot, so it is only needed
+	 * to compact sooner.
+	 *
+	 * This must be called on the thread that edits the grid.
+	 */
+	public void compact() {
+		final List<KeyFrame> frames = KeyFramePersistence.snapshot(grid).indexList;
+		final long next = ++generation;
+		long size = 12 + 10L * frames.size();
+		for (KeyFrame kf : frames) {
+			for (int i = 0; i < 11; i++) {
+				if (kf.isPositionSet(i))
+					size += 32;
+			}
+		}
+		snapshotSize = size;
+		journalSize = 0;
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (error != null)
+					return;
+				try {
+					writeSnapshot(frames, next);
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops recording, and waits for the records already made to be written.
+	 * The snapshot and journal are kept, so that they can be recovered.
+	 *
+	 * This must be called on the thread that edits the grid.
+	 *
+	 * @throws IOException
+	 *             if the journal could not be written
+	 */
+	public void close() throws IOException {
+		grid.removeKeyFrameGridListener(this);
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					closeJournal();
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		});
+		writer.shutdown();
+		try {
+			writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Returns the error that stopped the journal from being written, if any.
+	 * Once an error has occurred, nothing more is written.
+	 *
+	 * @return the error, or {@code null}
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	@Override
+	public void keyFrameAdded(KeyFrameGrid grid, KeyFrame kf) {
+		times.put(kf, kf.getTime());
+		try {
+			record.writeByte(ADD);
+			record.writeLong(kf.getTime());
+			int mask = 0;
+			for (int i = 0; i < 11; i++) {
+				if (kf.isPositionSet(i))
+					mask |= 1 << i;
+			}
+			record.writeShort(mask);
+			for (int i = 0; i < 11; i++) {
+				if (kf.get(i, vector) != null)
+					writeVector();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // cannot happen in memory
+		}
+		append();
+	}
+
+	@Override
+	public void keyFrameRemoved(KeyFrameGrid grid, KeyFrame kf) {
+		final Long time = times.remove(kf);
+		try {
+			record.writeByte(REMOVE);
+			record.writeLong((time == null) ? kf.getTime() : time);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		append();
+	}
+
+	@Override
+	public void keyFrameChanged(KeyFrameGrid grid, KeyFrame kf, int row) {
+		final Long oldTime = times.get(kf);
+		final long time = (oldTime == null) ? kf.getTime() : oldTime;
+		try {
+			if (row == 0) {
+				if (time == kf.getTime())
+					return;
+				times.put(kf, kf.getTime());
+				record.writeByte(TIME);
+				record.writeLong(time);
+				record.writeLong(kf.getTime());
+			} else if (kf.get(row - 1, vector) != null) {
+				record.writeByte(SET);
+				record.writeLong(time);
+				record.writeByte(row - 1);
+				writeVector();
+			} else {
+				record.writeByte(UNSET);
+				record.writeLong(time);
+				record.writeByte(row - 1);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		append();
+	}
+
+	private void writeVector() throws IOException {
+		record.writeDouble(vector.x);
+		record.writeDouble(vector.y);
+		record.writeDouble(vector.z);
+		record.writeDouble(vector.w);
+	}
+
+	/*
+	 * Hands the record just encoded to the writer thread, and compacts the
+	 * journal once it has grown larger than the last snapshot.
+	 */
+	private void append() {
+		final byte[] bytes = recordBytes.toByteArray();
+		recordBytes.reset();
+		journalSize += bytes.length + 8;
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (error != null || journal == null)
+					return;
+				try {
+					final CRC32 crc = new CRC32();
+					crc.update(bytes);
+					journal.writeInt(bytes.length);
+					journal.write(bytes);
+					journal.writeInt((int) crc.getValue());
+					if (queue.isEmpty())
+						sync();
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		});
+		if (journalSize > Math.max(MIN_COMPACT_SIZE, snapshotSize))
+			compact();
+	}
+
+	/*
+	 * Writes the snapshot, then its empty journal, and only then deletes the
+	 * files of earlier generations. Runs on the writer thread.
+	 */
+	private void writeSnapshot(List<KeyFrame> frames, long next)
+			throws IOException {
+		final File snapshot = getSnapshotFile(directory, next);
+		final File temp = new File(directory, snapshot.getName() + ".tmp");
+		KeyFrameBinaryFormat.write(frames, temp, null);
+		if (!temp.renameTo(snapshot))
+			throw new IOException("Cannot rename " + temp + " to " + snapshot
+					+ ".");
+		closeJournal();
+		journalFile = new FileOutputStream(getJournalFile(directory, next));
+		journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+		journal.writeInt(MAGIC);
+		journal.writeShort(VERSION);
+		journal.writeLong(next);
+		sync();
+		final File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			final String name = file.getName();
+			final long fileGeneration = Math.max(getGeneration(name,
+					SNAPSHOT_PREFIX, KeyFrameBinaryFormat.EXTENSION),
+					getGeneration(name, JOURNAL_PREFIX, JOURNAL_EXTENSION));
+			if (fileGeneration > 0 && fileGeneration < next)
+				file.delete();
+		}
+	}
+
+	private void sync() throws IOException {
+		journal.flush();
+		journalFile.getChannel().force(false);
+	}
+
+	private void closeJournal() throws IOException {
+		if (journal == null)
+			return;
+		try {
+			sync();
+		} finally {
+			journal.close();
+			journal = null;
+			journalFile = null;
+		}
+	}
+
+	private void fail(IOException e) {
+		error = e;
+		e.printStackTrace();
+		try {
+			closeJournal();
+		} catch (IOException ignored) {
+			// already failed
+		}
+	}
+
+	/*
+	 * Applies every complete record of the journal to the grid. A record that
+	 * is cut short or fails its checksum, which is what a crash while writing
+	 * leaves behind, ends the journal.
+	 */
+	private static void replay(File file, long generation, KeyFrameGrid grid)
+			throws IOException {
+		final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			try {
+				if (in.readInt() != MAGIC || in.readShort() > VERSION
+						|| in.readLong() != generation)
+					throw new IOException(file + " is not the journal of "
+							+ getSnapshotFile(file.getParentFile(), generation)
+							+ ".");
+			} catch (EOFException e) {
+				return; // the header never made it to disk
+			}
+			final CRC32 crc = new CRC32();
+			byte[] bytes = new byte[64];
+			while (true) {
+				final int length;
+				try {
+					length = in.readInt();
+					if (length <= 0 || length > 1024)
+						return;
+					if (bytes.length < length)
+						bytes = new byte[length];
+					in.readFully(bytes, 0, length);
+					crc.reset();
+					crc.update(bytes, 0, length);
+					if (in.readInt() != (int) crc.getValue())
+						return;
+				} catch (EOFException e) {
+					return;
+				}
+				apply(new DataInputStream(new ByteArrayInputStream(bytes,
+						0, length)), grid, file);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void apply(DataInputStream record, KeyFrameGrid grid,
+			File file) throws IOException {
+		final Vector4d vector = new Vector4d();
+		final byte type = record.readByte();
+		final long time = record.readLong();
+		final KeyFrame kf = find(grid, time);
+		if (type == ADD) {
+			final int mask = record.readShort();
+			final KeyFrame added = (kf == null) ? new KeyFrame().setTime(time)
+					: kf;
+			for (int i = 0; i < 11; i++) {
+				if ((mask & (1 << i)) != 0) {
+					readVector(record, vector);
+					added.set(i, vector);
+				} else if (kf != null) {
+					added.unSetPosition(i);
+				}
+			}
+			if (kf == null)
+				grid.add(added);
+			return;
+		}
+		if (kf == null)
+			throw new IOException(file + " refers to a KeyFrame at time "
+					+ time + " that does not exist.");
+		switch (type) {
+		case REMOVE:
+			grid.remove(kf);
+			break;
+		case TIME:
+			kf.setTime(record.readLong());
+			break;
+		case SET:
+			final int bone = record.readByte();
+			readVector(record, vector);
+			kf.set(bone, vector);
+			break;
+		case UNSET:
+			kf.unSetPosition(record.readByte());
+			break;
+		default:
+			throw new IOException(file + " contains an unknown record.");
+		}
+	}
+
+	private static void readVector(DataInputStream record, Vector4d vector)
+			throws IOException {
+		vector.set(record.readDouble(), record.readDouble(), record
+				.readDouble(), record.readDouble());
+	}
+
+	private static KeyFrame find(KeyFrameGrid grid, long time) {
+		final KeyFrame kf = grid.floor(time);
+		return (kf != null && kf.getTime() == time) ? kf : null;
+	}
+
+	private static File getSnapshotFile(File directory, long generation) {
+		return new File(directory, SNAPSHOT_PREFIX + generation
+				+ KeyFrameBinaryFormat.EXTENSION);
+	}
+
+	private static File getJournalFile(File directory, long generation) {
+		return new File(directory, JOURNAL_PREFIX + generation
+				+ JOURNAL_EXTENSION);
+	}
+
+	/*
+	 * Returns the highest generation of the files in the directory with the
+	 * given prefix and extension, or 0 if there are none.
+	 */
+	private static long findGeneration(File directory, String prefix,
+			String extension) {
+		long latest = 0;
+		final String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				latest = Math.max(latest, getGeneration(name, prefix,
+						extension));
+			}
+		}
+		return latest;
+	}
+
+	private static long getGeneration(String name, String prefix,
+			String extension) {
+		if (!name.startsWith(prefix) || !name.endsWith(extension))
+			return 0;
+		try {
+			return Long.parseLong(name.substring(prefix.length(), name
+					.length()
+					- extension.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+}
@@ -0,0 +1,224 @@
+package cohDemoEditor.ragdollAnimator.bind;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import javax.vecmath.Vector4d;
+
+import cohDemoEditor.ragdollAnimator.KeyFrame;
+import cohDemoEditor.ragdollAnimator.KeyFrameGrid;
+
+/**
+ * Reads and writes KeyFrameGrids in a compact binary format. The XML format
+ * stores every bone of every KeyFrame, set or not, as text attributes; this
+ * format stores only the bones that are set, as raw doubles, and is read into
+ * memory with a single bulk read and decoded in place.
+ *
+ * All values are big-endian. A file consists of:
+ *
+ * <pre>
+ * header      int magic ('RAGD'), short version, short flags, int frameCount
+ * times       frameCount longs, strictly increasing
+ * masks       frameCount shorts; bit i is set if bone i is set in that frame
+ * positions   for each frame, for each set bone: double x, y, z and w
+ * </pre>
+ */
+public final class KeyFrameBinaryFormat {
+
+	/**
+	 * The extension of files in this format.
+	 */
+	public static final String EXTENSION = ".ragdoll";
+
+	/**
+	 * The first four bytes of every file in this format.
+	 */
+	public static final int MAGIC = 0x52414744; // "RAGD"
+
+	/**
+	 * The version written by this class. Files with a newer version are
+	 * rejected.
+	 */
+	public static final short VERSION = 1;
+
+	private static final int HEADER_SIZE = 12;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private KeyFrameBinaryFormat() {
+	}
+
+	/**
+	 * Returns whether the given file should be read and written in this
+	 * format, based on its extension.
+	 *
+	 * @param file
+	 *            the file to check
+	 * @return true if the file has this format's extension
+	 */
+	public static boolean accepts(File file) {
+		return file.getName().toLowerCase().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Writes the given KeyFrames, which must be in order of increasing time.
+	 *
+	 * @param frames
+	 *            the KeyFrames to write
+	 * @param file
+	 *            the file to write to
+	 * @param progress
+	 *            receives the number of KeyFrames written, or {@code null}
+	 * @throws IOException
+	 *             if the file cannot be written
+	 * @throws CancellationException
+	 *             if the write was cancelled
+	 */
+	public static void write(List<KeyFrame> frames, File file,
+			KeyFramePersistence.Progress progress) throws IOException {
+		final int frameCount = frames.size();
+		final FileOutputStream out = new FileOutputStream(file);
+		try {
+			final FileChannel channel = out.getChannel();
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			buffer.putInt(MAGIC).putShort(VERSION).putShort((short) 0)
+					.putInt(frameCount);
+			for (KeyFrame kf : frames) {
+				if (buffer.remaining() < 8)
+					drain(buffer, channel);
+				buffer.putLong(kf.getTime());
+			}
+			for (KeyFrame kf : frames) {
+				if (buffer.remaining() < 2)
+					drain(buffer, channel);
+				buffer.putShort((short) getMask(kf));
+			}
+			final Vector4d vector = new Vector4d();
+			int done = 0;
+			for (KeyFrame kf : frames) {
+				for (int i = 0; i < 11; i++) {
+					if (kf.get(i, vector) == null)
+						continue;
+					if (buffer.remaining() < 32)
+						drain(buffer, channel);
+					buffer.putDouble(vector.x).putDouble(vector.y).putDouble(
+							vector.z).putDouble(vector.w);
+				}
+				if (progress != null) {
+					if (progress.isCancelled())
+						throw new CancellationException();
+					progress.progress(++done, frameCount);
+				}
+			}
+			drain(buffer, channel);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a KeyFrameGrid from a file. The whole file is read into a buffer
+	 * first and the file is closed before decoding starts. Nothing stays
+	 * mapped, so the file can be replaced as soon as this returns.
+	 *
+	 * @param file
+	 *            the file to read
+	 * @param progress
+	 *            receives the number of KeyFrames read, or {@code null}
+	 * @return the KeyFrameGrid
+	 * @throws IOException
+	 *             if the file cannot be read or is not in this format
+	 * @throws CancellationException
+	 *             if the read was cancelled
+	 */
+	public static KeyFrameGrid read(File file,
+			KeyFramePersistence.Progress progress) throws IOException {
+		final FileInputStream in = new FileInputStream(file);
+		final ByteBuffer buffer;
+		try {
+			final FileChannel channel = in.getChannel();
+			final long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large.");
+			buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					throw new IOException(file + " is truncated.");
+			}
+			buffer.flip();
+		} finally {
+			in.close();
+		}
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+			throw new IOException(file + " is not a ragdoll animation.");
+		final short version = buffer.getShort();
+		if (version > VERSION)
+			throw new IOException(file + " is version " + version
+					+ ", which is newer than this program supports.");
+		buffer.getShort(); // flags, unused so far
+		final int frameCount = buffer.getInt();
+		if (frameCount < 0 || (long) frameCount * 10 > buffer.remaining())
+			throw new IOException(file + " is truncated.");
+
+		final int timesStart = buffer.position();
+		final int masksStart = timesStart + 8 * frameCount;
+		int position = masksStart + 2 * frameCount;
+		final List<KeyFrame> frames = new ArrayList<KeyFrame>(frameCount);
+		final Vector4d vector = new Vector4d();
+		long previousTime = Long.MIN_VALUE;
+		for (int f = 0; f < frameCount; f++) {
+			final long time = buffer.getLong(timesStart + 8 * f);
+			final int mask = buffer.getShort(masksStart + 2 * f) & 0xFFFF;
+			if (time <= previousTime || time < 0 || (mask >>> 11) != 0)
+				throw new IOException(file + " is corrupt at KeyFrame " + f
+						+ ".");
+			if (position + 32L * Integer.bitCount(mask) > buffer.limit())
+				throw new IOException(file + " is truncated.");
+			previousTime = time;
+			final KeyFrame kf = new KeyFrame();
+			kf.setTime(time);
+			for (int i = 0; i < 11; i++) {
+				if ((mask & (1 << i)) == 0)
+					continue;
+				vector.set(buffer.getDouble(position), buffer
+						.getDouble(position + 8), buffer
+						.getDouble(position + 16), buffer
+						.getDouble(position + 24));
+				position += 32;
+				kf.set(i, vector);
+			}
+			frames.add(kf);
+			if (progress != null) {
+				if (progress.isCancelled())
+					throw new CancellationException();
+				progress.progress(f + 1, frameCount);
+			}
+		}
+		return new KeyFrameGrid(frames);
+	}
+
+	private static int getMask(KeyFrame kf) {
+		int mask = 0;
+		for (int i = 0; i < 11; i++) {
+			if (kf.isPositionSet(i))
+				mask |= 1 << i;
+		}
+		return mask;
+	}
+
+	private static void drain(ByteBuffer buffer, FileChannel channel)
+			throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+}
@@ -19,16 +19,6 @@ public class KeyFrameGridXmlAdapter extends
 
 	@Override
 	public KeyFrameGrid unmarshal(KeyFrameGridWrapper v) throws Exception {
-		KeyFrameGrid grid = new KeyFrameGrid();
-		for(KeyFrame kf : v.indexList) {
-			if (kf.getTime() == 0L) {
-				for(int i = 0; i < 11; i++) {
-					grid.get(0).set(i, kf.get(i));
-				}
-			} else {
-				grid.add(kf);
-			}
-		}
-		return grid;
+		return new KeyFrameGrid(v.indexList);
 	}
 }
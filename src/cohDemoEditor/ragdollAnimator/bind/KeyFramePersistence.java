@@ -0,0 +1,349 @@
+package cohDemoEditor.ragdollAnimator.bind;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+
+import javax.vecmath.Vector4d;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import cohDemoEditor.ragdollAnimator.KeyFrame;
+import cohDemoEditor.ragdollAnimator.KeyFrameGrid;
+
+/**
+ * KeyFramePersistence saves and loads KeyFrameGrids. Files whose names end in
+ * {@link KeyFrameBinaryFormat#EXTENSION} use the compact binary format, and
+ * all others use XML, which remains the interchange format. Creating a
+ * JAXBContext is expensive, so a single context is created the first time it
+ * is needed and shared from then on. Marshallers are not thread-safe, so each
+ * thread gets its own. XML is loaded with a {@link KeyFrameXmlReader}, which
+ * builds the grid as it reads instead of unmarshalling the whole document
+ * first.
+ *
+ * Saving and loading may take a while for large animations, so both report
+ * their progress and can be cancelled. Neither touches Swing, so both may run
+ * on any thread. A KeyFrameGrid must not be read while it is being edited,
+ * though, so a save works from a {@link #snapshot(KeyFrameGrid)} taken on the
+ * thread that edits the grid.
+ */
+public final class KeyFramePersistence {
+
+	/**
+	 * Receives the progress of a save or load, and tells it when to stop.
+	 */
+	public interface Progress {
+
+		/**
+		 * Called as work is done.
+		 *
+		 * @param done
+		 *            the amount of work done so far
+		 * @param total
+		 *            the total amount of work
+		 */
+		void progress(long done, long total);
+
+		/**
+		 * Checked regularly while working.
+		 *
+		 * @return true if the save or load should stop
+		 */
+		boolean isCancelled();
+
+		/**
+		 * Called once a save is about to replace the file, which cannot be
+		 * undone. From then on the save can no longer be cancelled, so a
+		 * cancel that arrives later must not be reported as one.
+		 *
+		 * @return false if the save has already been cancelled, in which case
+		 *         the file is left alone
+		 */
+		boolean commit();
+
+	}
+
+	private static KeyFramePersistence instance;
+
+	private final JAXBContext context;
+
+	private final ThreadLocal<Marshaller> marshallers = new ThreadLocal<Marshaller>() {
+		@Override
+		protected Marshaller initialValue() {
+			try {
+				return context.createMarshaller();
+			} catch (JAXBException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/**
+	 * Returns the shared KeyFramePersistence, creating it if necessary.
+	 *
+	 * @return the shared KeyFramePersistence
+	 * @throws JAXBException
+	 *             if the XML binding cannot be created
+	 */
+	public static synchronized KeyFramePersistence getInstance()
+			throws JAXBException {
+		if (instance == null) {
+			instance = new KeyFramePersistence();
+		}
+		return instance;
+	}
+
+	private KeyFramePersistence() throws JAXBException {
+		context = JAXBContext.newInstance(KeyFrameGridWrapper.class);
+	}
+
+	/**
+	 * Copies the KeyFrames of the given grid, so that they can be saved on
+	 * another thread while the grid is being edited. This must be called on
+	 * the thread that edits the grid.
+	 *
+	 * @param grid
+	 *            the grid to copy
+	 * @return a copy of the grid ready to be saved
+	 */
+	public static KeyFrameGridWrapper snapshot(KeyFrameGrid grid) {
+		final KeyFrameGridWrapper wrapper = new KeyFrameGridWrapper();
+		wrapper.indexList.ensureCapacity(grid.size());
+		final Vector4d vector = new Vector4d();
+		for (KeyFrame kf : grid) {
+			final KeyFrame copy = new KeyFrame();
+			copy.setTime(kf.getTime());
+			for (int i = 0; i < 11; i++) {
+				if (kf.get(i, vector) != null)
+					copy.set(i, vector);
+			}
+			wrapper.indexList.add(copy);
+		}
+		return wrapper;
+	}
+
+	/**
+	 * Saves a snapshot to the given file, in binary or XML depending on the
+	 * name of the file. The snapshot is written to a
+	 * temporary file first, so the file is left untouched if the save fails
+	 * or is cancelled.
+	 *
+	 * @param snapshot
+	 *            the snapshot to save
+	 * @param file
+	 *            the file to save to
+	 * @param progress
+	 *            receives the number of KeyFrames saved, or {@code null}
+	 * @throws IOException
+	 *             if the file cannot be written
+	 * @throws JAXBException
+	 *             if the snapshot cannot be converted to XML
+	 * @throws CancellationException
+	 *             if the save was cancelled
+	 */
+	public void save(KeyFrameGridWrapper snapshot, File file,
+			final Progress progress) throws IOException, JAXBException {
+		final File directory = file.getAbsoluteFile().getParentFile();
+		// createTempFile needs a prefix of at least three characters
+		final File temp = File.createTempFile(file.getName() + ".save",
+				".tmp", directory);
+		final Marshaller m = marshallers.get();
+		final long total = snapshot.indexList.size();
+		final boolean binary = KeyFrameBinaryFormat.accepts(file);
+		if (progress != null && !binary) {
+			m.setListener(new Marshaller.Listener() {
+				private long done = 0;
+
+				@Override
+				public void afterMarshal(Object source) {
+					if (source instanceof KeyFrame) {
+						if (progress.isCancelled())
+							throw new CancellationException();
+						progress.progress(++done, total);
+					}
+				}
+			});
+		}
+		boolean saved = false;
+		try {
+			if (binary) {
+				KeyFrameBinaryFormat.write(snapshot.indexList, temp, progress);
+			} else {
+				final OutputStream out = new BufferedOutputStream(
+						new FileOutputStream(temp));
+				try {
+					m.marshal(snapshot, out);
+				} finally {
+					out.close();
+				}
+			}
+			if (progress != null && !progress.commit())
+				throw new CancellationException();
+			// renameTo replaces the file atomically where it can
+			if (!temp.renameTo(file))
+				replace(temp, file);
+			saved = true;
+		} catch (JAXBException e) {
+			checkCancelled(progress);
+			throw e;
+		} finally {
+			m.setListener(null);
+			if (!saved)
+				temp.delete();
+		}
+	}
+
+	/**
+	 * Saves a KeyFrameGrid to the given file. The grid must not be edited
+	 * while it is being saved.
+	 *
+	 * @param grid
+	 *            the grid to save
+	 * @param file
+	 *            the file to save to
+	 * @throws IOException
+	 *             if the file cannot be written
+	 * @throws JAXBException
+	 *             if the grid cannot be converted to XML
+	 */
+	public void save(KeyFrameGrid grid, File file) throws IOException,
+			JAXBException {
+		final KeyFrameGridWrapper wrapper = new KeyFrameGridWrapper();
+		wrapper.indexList.addAll(grid);
+		save(wrapper, file, null);
+	}
+
+	/**
+	 * Loads a KeyFrameGrid from the given file, in binary or XML depending on
+	 * the name of the file.
+	 *
+	 * @param file
+	 *            the file to load
+	 * @param progress
+	 *            receives the number of KeyFrames or bytes read, or {@code
+	 *            null}
+	 * @return the loaded grid
+	 * @throws IOException
+	 *             if the file cannot be read or does not contain a valid
+	 *             grid
+	 * @throws JAXBException
+	 *             never; declared for compatibility with earlier versions
+	 * @throws CancellationException
+	 *             if the load was cancelled
+	 */
+	public KeyFrameGrid load(File file, Progress progress) throws IOException,
+			JAXBException {
+		if (KeyFrameBinaryFormat.accepts(file))
+			return KeyFrameBinaryFormat.read(file, progress);
+		final InputStream in = new BufferedInputStream(new ProgressInputStream(
+				new FileInputStream(file), file.length(), progress));
+		try {
+			return KeyFrameXmlReader.read(in, progress);
+		} catch (IOException e) {
+			checkCancelled(progress);
+			throw new IOException(file + " does not contain a valid KeyFrameGrid: "
+					+ e.getMessage(), e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Loads a KeyFrameGrid from the given file.
+	 *
+	 * @param file
+	 *            the file to load
+	 * @return the loaded grid
+	 * @throws IOException
+	 *             if the file cannot be read or does not contain a valid
+	 *             grid
+	 * @throws JAXBException
+	 *             never; declared for compatibility with earlier versions
+	 */
+	public KeyFrameGrid load(File file) throws IOException, JAXBException {
+		return load(file, null);
+	}
+
+	/*
+	 * Replaces file with temp where renameTo will not replace an existing
+	 * file, as on Windows. The old file is moved aside instead of being
+	 * deleted first, so that there is always a complete file to go back to.
+	 * The name it is moved to comes from createTempFile, so no other file is
+	 * ever overwritten or deleted.
+	 */
+	private static void replace(File temp, File file) throws IOException {
+		final File old = File.createTempFile(file.getName() + ".old", ".tmp",
+				temp.getParentFile());
+		// renameTo will not replace the empty file createTempFile made
+		old.delete();
+		if (file.exists() && !file.renameTo(old))
+			throw new IOException("Cannot replace " + file + ".");
+		if (!temp.renameTo(file)) {
+			old.renameTo(file);
+			throw new IOException("Cannot rename " + temp + " to " + file
+					+ ".");
+		}
+		old.delete();
+	}
+
+	/*
+	 * A JAXB or read failure while cancelling is just the cancellation showing
+	 * through.
+	 */
+	private static void checkCancelled(Progress progress) {
+		if (progress != null && progress.isCancelled())
+			throw new CancellationException();
+	}
+
+	/*
+	 * Reports the number of bytes read, and stops reading once cancelled.
+	 */
+	private static class ProgressInputStream extends FilterInputStream {
+
+		private final long total;
+		private final Progress progress;
+		private long done = 0;
+
+		ProgressInputStream(InputStream in, long total, Progress progress) {
+			super(in);
+			this.total = total;
+			this.progress = progress;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b >= 0)
+				update(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			final int count = super.read(b, off, len);
+			if (count > 0)
+				update(count);
+			return count;
+		}
+
+		private void update(int count) throws IOException {
+			if (progress == null)
+				return;
+			if (progress.isCancelled())
+				throw new InterruptedIOException("Load cancelled.");
+			done += count;
+			progress.progress(done, total);
+		}
+
+	}
+
+}
@@ -0,0 +1,200 @@
+package cohDemoEditor.ragdollAnimator.bind;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import javax.vecmath.Vector4d;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import cohDemoEditor.ragdollAnimator.KeyFrame;
+import cohDemoEditor.ragdollAnimator.KeyFrameGrid;
+
+/**
+ * Reads the XML written by KeyFramePersistence one element at a time, creating
+ * each KeyFrame as soon as it has been read. Unlike unmarshalling through
+ * JAXB, no tree of wrapper objects is built first, so the memory used stays
+ * close to the size of the finished grid.
+ *
+ * The document is checked as it is read. Any element that does not belong, a
+ * KeyFrame without exactly 11 bones, a bone out of order, an attribute that is
+ * not a number, or KeyFrame times that do not increase, is reported together
+ * with its line and column.
+ */
+public final class KeyFrameXmlReader {
+
+	private static final String ROOT = "keyFrameGridWrapper";
+	private static final String KEYFRAMES = "keyframes";
+	private static final String KEYFRAME = "keyframe";
+	private static final String POSITIONS = "positions";
+	private static final String ITEM = "item";
+
+	private static final XMLInputFactory FACTORY = XMLInputFactory
+			.newInstance();
+
+	static {
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				Boolean.FALSE);
+	}
+
+	private final XMLStreamReader reader;
+	private final KeyFramePersistence.Progress progress;
+	private final Vector4d vector = new Vector4d();
+
+	private KeyFrameXmlReader(XMLStreamReader reader,
+			KeyFramePersistence.Progress progress) {
+		this.reader = reader;
+		this.progress = progress;
+	}
+
+	/**
+	 * Reads a KeyFrameGrid. The stream is not closed.
+	 *
+	 * @param in
+	 *            the XML to read
+	 * @param progress
+	 *            checked for cancellation after each KeyFrame, or {@code
+	 *            null}
+	 * @return the KeyFrameGrid
+	 * @throws IOException
+	 *             if the stream cannot be read or the XML is not a valid
+	 *             KeyFrameGrid
+	 * @throws CancellationException
+	 *             if the read was cancelled
+	 */
+	public static KeyFrameGrid read(InputStream in,
+			KeyFramePersistence.Progress progress) throws IOException {
+		final XMLStreamReader reader;
+		try {
+			synchronized (FACTORY) {
+				reader = FACTORY.createXMLStreamReader(in);
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException("Cannot read XML: " + e.getMessage(), e);
+		}
+		try {
+			return new KeyFrameXmlReader(reader, progress).readGrid();
+		} catch (XMLStreamException e) {
+			throw new IOException("Malformed XML: " + e.getMessage(), e);
+		} finally {
+			try {
+				reader.close();
+			} catch (XMLStreamException e) {
+				// nothing left to read anyway
+			}
+		}
+	}
+
+	private KeyFrameGrid readGrid() throws XMLStreamException, IOException {
+		final List<KeyFrame> frames = new ArrayList<KeyFrame>();
+		reader.nextTag();
+		expectStart(ROOT);
+		if (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			expectStart(KEYFRAMES);
+			long previousTime = -1;
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				expectStart(KEYFRAME);
+				final long time = getLong("time", 0);
+				if (time <= previousTime)
+					throw error("KeyFrame at time " + time
+							+ " does not come after time " + previousTime);
+				previousTime = time;
+				final KeyFrame kf = new KeyFrame();
+				kf.setTime(time);
+				readPositions(kf);
+				frames.add(kf);
+				if (progress != null && progress.isCancelled())
+					throw new CancellationException();
+			}
+			reader.nextTag();
+		}
+		expectEnd(ROOT);
+		return new KeyFrameGrid(frames);
+	}
+
+	/*
+	 * Reads the positions of a keyframe element, leaving the reader at the end
+	 * of the keyframe.
+	 */
+	private void readPositions(final KeyFrame kf) throws XMLStreamException,
+			IOException {
+		reader.nextTag();
+		expectStart(POSITIONS);
+		int bone = 0;
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			expectStart(ITEM);
+			if (bone == 11)
+				throw error("More than 11 bones in KeyFrame at time "
+						+ kf.getTime());
+			if (getLong("boneNumber", bone) != bone)
+				throw error("Expected bone " + bone);
+			final String isSet = reader.getAttributeValue(null, "isSet");
+			if (isSet == null || Boolean.parseBoolean(isSet)) {
+				vector.set(getDouble("x"), getDouble("y"), getDouble("z"),
+						getDouble("w"));
+				kf.set(bone, vector);
+			} else if (!"false".equals(isSet)) {
+				throw error("isSet must be true or false");
+			}
+			bone++;
+			if (reader.nextTag() != XMLStreamConstants.END_ELEMENT)
+				throw error("Unexpected element inside a bone");
+		}
+		if (bone != 11)
+			throw error("Only " + bone + " bones in KeyFrame at time "
+					+ kf.getTime());
+		expectEnd(POSITIONS);
+		reader.nextTag();
+		expectEnd(KEYFRAME);
+	}
+
+	private void expectStart(final String name) throws IOException {
+		if (reader.getEventType() != XMLStreamConstants.START_ELEMENT
+				|| !name.equals(reader.getLocalName()))
+			throw error("Expected <" + name + ">");
+	}
+
+	private void expectEnd(final String name) throws IOException {
+		if (reader.getEventType() != XMLStreamConstants.END_ELEMENT
+				|| !name.equals(reader.getLocalName()))
+			throw error("Expected </" + name + ">");
+	}
+
+	private long getLong(final String name, final long defaultValue)
+			throws IOException {
+		final String value = reader.getAttributeValue(null, name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw error(name + " is not a whole number: " + value);
+		}
+	}
+
+	private double getDouble(final String name) throws IOException {
+		final String value = reader.getAttributeValue(null, name);
+		if (value == null)
+			return 0;
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			throw error(name + " is not a number: " + value);
+		}
+	}
+
+	private IOException error(final String message) {
+		final Location location = reader.getLocation();
+		return new IOException(message + " at line "
+				+ location.getLineNumber() + ", column "
+				+ location.getColumnNumber() + ".");
+	}
+
+}
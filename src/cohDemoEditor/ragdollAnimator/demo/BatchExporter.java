@@ -0,0 +1,355 @@
+package cohDemoEditor.ragdollAnimator.demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.bind.JAXBException;
+
+import cohDemoEditor.ragdollAnimator.BoneTrackIndex;
+import cohDemoEditor.ragdollAnimator.KeyFrameGrid;
+import cohDemoEditor.ragdollAnimator.bind.KeyFrameBinaryFormat;
+import cohDemoEditor.ragdollAnimator.bind.KeyFramePersistence;
+
+/**
+ * A command line tool that exports many saved animations to .cohdemo files at
+ * once, without opening the RagdollAnimator. Each XML or .ragdoll file written
+ * by the Save action is exported to a .cohdemo file with the same name, in
+ * parallel on a pool of worker threads.
+ *
+ * The BatchExporter runs headless. It never creates any windows and never
+ * touches Java3D; the only Swing classes it loads are the table model
+ * interfaces that KeyFrame and KeyFrameGrid implement.
+ *
+ * Usage: BatchExporter [options] files or directories...
+ *
+ * <pre>
+ * -step ms       the time between samples (default 33)
+ * -ref n         the entity reference (default 1)
+ * -time t        the base EntRagdoll time argument (default 500)
+ * -threads n     the number of worker threads (default one per processor)
+ * -prefix file   a file to copy to the start of every export, instead of
+ *                DemoExporter.DEFAULT_PREFIX
+ * -out dir       the directory to export into (default next to each input)
+ * </pre>
+ */
+public class BatchExporter {
+
+	public static final String EXTENSION = ".cohdemo";
+
+	private final KeyFramePersistence persistence;
+	private final DemoExporter exporter;
+	private final byte[] prefix;
+	private final File outputDirectory;
+
+	/**
+	 * Creates a new BatchExporter.
+	 *
+	 * @param exporter
+	 *            the exporter that formats each animation
+	 * @param prefix
+	 *            the bytes to write at the start of every export, or {@code
+	 *            null} for DemoExporter.DEFAULT_PREFIX
+	 * @param outputDirectory
+	 *            the directory to export into, or {@code null} to export next
+	 *            to each input file
+	 * @throws JAXBException
+	 *             if the XML binding cannot be created
+	 */
+	public BatchExporter(DemoExporter exporter, byte[] prefix,
+			File outputDirectory) throws JAXBException {
+		if (exporter == null)
+			throw new IllegalArgumentException(
+					"A BatchExporter needs a DemoExporter.");
+		this.persistence = KeyFramePersistence.getInstance();
+		this.exporter = exporter;
+		this.prefix = (prefix == null) ? getBytes(DemoExporter.DEFAULT_PREFIX)
+				: prefix;
+		this.outputDirectory = outputDirectory;
+	}
+
+	/**
+	 * Returns the file that the given input file is exported to.
+	 *
+	 * @param input
+	 *            the saved animation
+	 * @return the .cohdemo file
+	 */
+	public File getOutputFile(File input) {
+		String name = input.getName();
+		final int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+		final File directory = (outputDirectory == null) ? input
+				.getAbsoluteFile().getParentFile() : outputDirectory;
+		return new File(directory, name + EXTENSION);
+	}
+
+	/**
+	 * Loads and exports a single file.
+	 *
+	 * @param input
+	 *            the saved animation
+	 * @return the timings and size of the export
+	 * @throws Exception
+	 *             if the file cannot be loaded or exported
+	 */
+	public Result export(File input) throws Exception {
+		final long start = System.nanoTime();
+		final KeyFrameGrid grid = persistence.load(input);
+		final long loaded = System.nanoTime();
+		final File output = getOutputFile(input);
+		final DemoWriter out = new DemoWriter(new FileOutputStream(output));
+		try {
+			out.write(prefix, 0, prefix.length);
+			exporter.export(BoneTrackIndex.compile(grid), out);
+		} finally {
+			out.close();
+		}
+		return new Result(input, output, loaded - start, System.nanoTime()
+				- loaded, out.getBytesWritten());
+	}
+
+	/**
+	 * Exports every file on the given pool and reports on each file as it
+	 * finishes, in the order the files were given.
+	 *
+	 * @param inputs
+	 *            the saved animations
+	 * @param pool
+	 *            the pool to export on
+	 * @return the number of files that failed
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for an export
+	 */
+	public int exportAll(List<File> inputs, ExecutorService pool)
+			throws InterruptedException {
+		final long start = System.nanoTime();
+		final List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		for (final File input : inputs) {
+			futures.add(pool.submit(new Callable<Result>() {
+				@Override
+				public Result call() throws Exception {
+					return export(input);
+				}
+			}));
+		}
+		int failures = 0;
+		long bytes = 0;
+		for (int i = 0; i < inputs.size(); i++) {
+			try {
+				final Result result = futures.get(i).get();
+				bytes += result.getBytes();
+				System.out.println(result);
+			} catch (ExecutionException e) {
+				failures++;
+				System.err.println(inputs.get(i) + ": failed: " + e.getCause());
+			}
+		}
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf(
+				"%d files (%d failed) and %.1f MB in %.2f s: %.1f files/s, %.1f MB/s%n",
+				inputs.size(), failures, bytes / 1e6, seconds, inputs.size()
+						/ seconds, bytes / 1e6 / seconds);
+		return failures;
+	}
+
+	/**
+	 * The timings and size of a single export.
+	 */
+	public static class Result {
+
+		private final File input;
+		private final File output;
+		private final long loadNanos;
+		private final long exportNanos;
+		private final long bytes;
+
+		Result(File input, File output, long loadNanos, long exportNanos,
+				long bytes) {
+			this.input = input;
+			this.output = output;
+			this.loadNanos = loadNanos;
+			this.exportNanos = exportNanos;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Simple getter.
+		 *
+		 * @return the saved animation
+		 */
+		public File getInput() {
+			return input;
+		}
+
+		/**
+		 * Simple getter.
+		 *
+		 * @return the .cohdemo file
+		 */
+		public File getOutput() {
+			return output;
+		}
+
+		/**
+		 * Simple getter.
+		 *
+		 * @return the time taken to load the saved animation, in nanoseconds
+		 */
+		public long getLoadNanos() {
+			return loadNanos;
+		}
+
+		/**
+		 * Simple getter.
+		 *
+		 * @return the time taken to export, in nanoseconds
+		 */
+		public long getExportNanos() {
+			return exportNanos;
+		}
+
+		/**
+		 * Simple getter.
+		 *
+		 * @return the number of bytes written
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s -> %s: load %.1f ms, export %.1f ms, %d bytes",
+					input, output.getName(), loadNanos / 1e6, exportNanos / 1e6,
+					bytes);
+		}
+
+	}
+
+	/*
+	 * Adds the file, or every XML and .ragdoll file in the directory, to
+	 * inputs.
+	 */
+	private static void addInputs(File file, List<File> inputs) {
+		if (file.isDirectory()) {
+			final File[] files = file.listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.toLowerCase().endsWith(".xml")
+							|| KeyFrameBinaryFormat.accepts(new File(dir, name));
+				}
+			});
+			if (files != null) {
+				Arrays.sort(files);
+				for (File f : files) {
+					inputs.add(f);
+				}
+			}
+		} else {
+			inputs.add(file);
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[DemoWriter.DEFAULT_BUFFER_SIZE];
+			int count;
+			while ((count = in.read(buffer)) >= 0) {
+				bytes.write(buffer, 0, count);
+			}
+			return bytes.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] getBytes(String s) {
+		// the prefix is plain ASCII, written a char to a byte like DemoWriter
+		final byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+
+	private static int usage() {
+		System.err.println("Usage: BatchExporter [-step ms] [-ref n] [-time t] "
+				+ "[-threads n] [-prefix file] [-out dir] files or directories...");
+		return 2;
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		final int status = run(args);
+		if (status != 0)
+			System.exit(status);
+	}
+
+	/*
+	 * Runs the exporter and returns the exit status: 0 if every file was
+	 * exported, 1 if some failed and 2 for bad arguments.
+	 */
+	private static int run(String[] args) throws Exception {
+		int step = 33;
+		int ref = 1;
+		long argTime = 500;
+		int threads = Runtime.getRuntime().availableProcessors();
+		byte[] prefix = null;
+		File outputDirectory = null;
+		final List<File> inputs = new ArrayList<File>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				final String arg = args[i];
+				if (arg.equals("-step")) {
+					step = Integer.parseInt(args[++i]);
+				} else if (arg.equals("-ref")) {
+					ref = Integer.parseInt(args[++i]);
+				} else if (arg.equals("-time")) {
+					argTime = Long.parseLong(args[++i]);
+				} else if (arg.equals("-threads")) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (arg.equals("-prefix")) {
+					prefix = readFile(new File(args[++i]));
+				} else if (arg.equals("-out")) {
+					outputDirectory = new File(args[++i]);
+				} else if (arg.startsWith("-")) {
+					return usage();
+				} else {
+					addInputs(new File(arg), inputs);
+				}
+			}
+		} catch (RuntimeException e) {
+			return usage();
+		}
+		if (inputs.isEmpty() || threads <= 0)
+			return usage();
+		if (outputDirectory != null)
+			outputDirectory.mkdirs();
+
+		final BatchExporter batch = new BatchExporter(new DemoExporter(step,
+				ref, argTime), prefix, outputDirectory);
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			return (batch.exportAll(inputs, pool) > 0) ? 1 : 0;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+}
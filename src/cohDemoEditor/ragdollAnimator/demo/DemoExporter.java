@@ -0,0 +1,441 @@
+package cohDemoEditor.ragdollAnimator.demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import cohDemoEditor.ragdollAnimator.BoneTrackCursor;
+import cohDemoEditor.ragdollAnimator.BoneTrackIndex;
+import cohDemoEditor.ragdollAnimator.FigurePositionInterpolator;
+
+/**
+ * A DemoExporter generates the EntRagdoll commands for an animation and
+ * streams them to a DemoWriter. Each sample becomes one EntRagdoll line
+ * followed by a Chat line with the sample time.
+ * 
+ * The exporter works from a BoneTrackIndex, which is an immutable snapshot of
+ * the animation, so an export may run on any thread.
+ */
+public class DemoExporter {
+
+	/**
+	 * The commands written before the animation to make a playable demo: the
+	 * demo version, map, time and camera, and the player entity (reference 1)
+	 * that the EntRagdoll commands move.
+	 */
+	public static final String DEFAULT_PREFIX = "1   0   Version 2\n0   0   Map maps/City_Zones/City_03_01/City_03_01.txt\n0   0   Time 12.000000\n0   CAM POS -200.0 -100.0 -200\n0   CAM PYR -0.0 1.5707963267948966 0\n0   1   Player\n0   1   NEW \"Doctor Leo\"\n0   1   COSTUME 0 9bd2ff -2.015267 -1.000000 0.000000 -0.527472 -1.000000 -1.000000 -1.000000 0.000000 0.000000 0.710000 0.760000 1.000000 -0.350000 1.000000 -1.000000 -1.000000 -1.000000 -1.000000 -1.000000 -0.800000 -1.000000 1.000000 1.000000 1.000000 -1.000000 -1.000000 -1.000000 -0.410000 -0.510000 -0.860000\n0   1   PARTSNAME Tight !Hips_V_Vanguard_01 !Hips_V_Vanguard_01_Mask 660000 ff4d4c\n0   1   PARTSNAME Tight !Chest_V_Vanguard_01 !Chest_V_Vanguard_01_Mask 660000 ff4d4c\n0   1   PARTSNAME V_MALE_HEAD.GEO/GEO_Head_V_Asym_Standard !v_face_skin_head_11 none 000000 000000\n0   1   PARTSNAME Wristband skin_wristband_01a skin_wristband_01b 000000 ff894c\n0   1   PARTSNAME V_MALE_BOOT.GEO/GEO_Lleg*_Rocket_01 !X_male_boot_rocket_01 none 000000 ff894c 000000 000000 AnimatedCharacterParts/RocketBoots.fx\n0   1   PARTSNAME V_MALE_BELT.GEO/GEO_Belt_Vangaurd_02 !X_Vanguard_Belt none 000000 ff894c\n0   1   PARTSNAME Style_03 Style_01a Style_01b 000a1f 000000\n0   1   PARTSNAME none none none 00000000 00000000\n0   1   PARTSNAME Glasses_01 Gradient_01a Gradient_01b 000000 0000ff\n0   1   PARTSNAME V_MALE_EMBLEM.GEO/GEO_Emblem_Vangaurd_02 !X_Vanguard_Belt none 000000 ff894c\n0   1   PARTSNAME V_MALE_SPADR.GEO/GEO_SpadR_Vangaurd_01 !X_Vanguard_Shoulder none 000000 ff894c\n0   1   PARTSNAME none none none 00000000 00000000\n0   1   PARTSNAME none none none 00000000 00000000\n0   1   PARTSNAME Chin_01 Tech_01a Tech_01b 0000ff 000000\n0   1   PARTSNAME none none none 00000000 00000000\n0   1   PARTSNAME none none none 000000 00000000\n0   1   PARTSNAME none none none 000000 00000000\n0   1   PARTSNAME none none none 000000 00000000\n0   1   PARTSNAME none none none 00000000 000000\n0   1   PARTSNAME none none none 00000000 00000000\n0   1   PARTSNAME none none none 000000 00000000\n0   1   PARTSNAME none none none 000000 00000000\n0   1   PARTSNAME none none none 000000 000000\n0   1   PARTSNAME none none none 00000000 00000000\n0   1   PARTSNAME none none none 00000000 00000000\n0   1   PARTSNAME none none none 00000000 00000000\n0   1   PARTSNAME none none none 00000000 00000000\n0   1   POS -210.0 -100.0 -200.0\n0   1   PYR 0.0 1.5707963267948966 0\n";
+
+	/**
+	 * The number of samples formatted by each task of a parallel export.
+	 */
+	public static final int CHUNK_SIZE = 256;
+
+	private final int timePerStep;
+	private final int ref;
+	private final long argTime;
+
+	/**
+	 * Creates a new DemoExporter.
+	 * 
+	 * @param timePerStep
+	 *            the number of milliseconds between samples
+	 * @param ref
+	 *            the entity reference that the commands apply to
+	 * @param argTime
+	 *            the base time used for the EntRagdoll time arguments
+	 */
+	public DemoExporter(int timePerStep, int ref, long argTime) {
+		if (timePerStep <= 0)
+			throw new IllegalArgumentException(
+					"A DemoExporter needs a positive time per step.");
+		this.timePerStep = timePerStep;
+		this.ref = ref;
+		this.argTime = argTime;
+	}
+
+	/**
+	 * Writes the EntRagdoll and Chat commands for the given animation.
+	 * 
+	 * @param index
+	 *            the snapshot of the animation to export
+	 * @param out
+	 *            the destination
+	 * @throws IOException
+	 *             if the destination cannot be written
+	 */
+	public void export(final BoneTrackIndex index, final DemoWriter out)
+			throws IOException {
+		writeSamples(index, 0, getSampleCount(index), out);
+	}
+
+	/**
+	 * Writes the same commands as {@link #export(BoneTrackIndex, DemoWriter)},
+	 * but formats them in parallel. The timeline is split into chunks of
+	 * CHUNK_SIZE samples, which are formatted on the given pool and then
+	 * written to out in order. Only a few chunks per thread are held in memory
+	 * at any time. The output is identical to the sequential export.
+	 * 
+	 * @param index
+	 *            the snapshot of the animation to export
+	 * @param out
+	 *            the destination
+	 * @param pool
+	 *            the pool that formats the chunks
+	 * @throws IOException
+	 *             if the destination cannot be written
+	 */
+	public void export(final BoneTrackIndex index, final DemoWriter out,
+			final ForkJoinPool pool) throws IOException {
+		final int sampleCount = getSampleCount(index);
+		final int window = 2 * pool.getParallelism();
+		final ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<ForkJoinTask<byte[]>>();
+		int nextChunk = 0;
+		while (nextChunk < sampleCount || !pending.isEmpty()) {
+			while (nextChunk < sampleCount && pending.size() < window) {
+				final int first = nextChunk;
+				final int end = Math.min(sampleCount, first + CHUNK_SIZE);
+				pending.add(pool.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws IOException {
+						final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+						final DemoWriter chunk = new DemoWriter(bytes);
+						writeSamples(index, first, end, chunk);
+						chunk.close();
+						return bytes.toByteArray();
+					}
+				}));
+				nextChunk = end;
+			}
+			final byte[] chunk = pending.remove().join();
+			out.write(chunk, 0, chunk.length);
+		}
+	}
+
+	/**
+	 * Writes the commands for the given animation, leaving out every sample
+	 * whose quantized pose is the same as the one written before it. The
+	 * figure simply holds its pose through such a run, so the animation plays
+	 * back the same. The time of each skipped sample is added to the delta of
+	 * the next sample that is written. The first and last samples are always
+	 * written, so the animation still starts and ends at the same times.
+	 * 
+	 * Only the Chat lines of the skipped samples are lost.
+	 * 
+	 * @param index
+	 *            the snapshot of the animation to export
+	 * @param out
+	 *            the destination
+	 * @return how many lines and bytes were written and saved
+	 * @throws IOException
+	 *             if the destination cannot be written
+	 */
+	public ExportStatistics exportChanges(final BoneTrackIndex index,
+			final DemoWriter out) throws IOException {
+		final ExportStatistics statistics = new ExportStatistics();
+		final long startBytes = out.getBytesWritten();
+		final int sampleCount = getSampleCount(index);
+		final double[] pose = new double[FigurePositionInterpolator.POSE_LENGTH];
+		int[] angles = new int[EntRagdollEncoder.ANGLE_COUNT];
+		int[] previous = new int[EntRagdollEncoder.ANGLE_COUNT];
+		final BoneTrackCursor cursor = new BoneTrackCursor();
+		final EntRagdollEncoder encoder = new EntRagdollEncoder();
+		long fullBytes = 0;
+		long delta = 0;
+		for (int sample = 0; sample < sampleCount; sample++) {
+			final long time = 1 + (long) sample * timePerStep;
+			final long step = (time == 1) ? 1 : timePerStep;
+			final long firstArg = argTime + 3 * (time + timePerStep);
+			final long secondArg = argTime + 3 * time;
+			delta += step;
+			index.evaluatePose(time, pose, cursor);
+			EntRagdollEncoder.quantize(pose, angles);
+			fullBytes += encoder.encode(step, ref, firstArg, secondArg, angles,
+					time);
+			if (sample > 0 && sample < sampleCount - 1
+					&& Arrays.equals(angles, previous)) {
+				continue;
+			}
+			if (delta != step) {
+				encoder.encode(delta, ref, firstArg, secondArg, angles, time);
+			}
+			encoder.writeTo(out);
+			statistics.samplesWritten++;
+			delta = 0;
+			final int[] swap = previous;
+			previous = angles;
+			angles = swap;
+		}
+		statistics.samples = sampleCount;
+		statistics.bytesWritten = out.getBytesWritten() - startBytes;
+		statistics.bytesSaved = fullBytes - statistics.bytesWritten;
+		return statistics;
+	}
+
+	/**
+	 * Writes the commands for the given animation, placing samples only where
+	 * they are needed instead of every timePerStep. A sample is always placed
+	 * at the time of every KeyFrame and at the first and last sample times of
+	 * a normal export. Between those, a sample is added wherever the animation
+	 * strays from a straight line between the neighbouring samples by more
+	 * than the given tolerance, on the same timePerStep grid as a normal
+	 * export, until no part of the animation is further than the tolerance
+	 * from the samples that were written.
+	 * 
+	 * @param index
+	 *            the snapshot of the animation to export
+	 * @param out
+	 *            the destination
+	 * @param tolerance
+	 *            the largest error allowed, in CoH angle units
+	 * @return how many lines and bytes were written and saved
+	 * @throws IOException
+	 *             if the destination cannot be written
+	 */
+	public ExportStatistics exportAdaptive(final BoneTrackIndex index,
+			final DemoWriter out, final double tolerance) throws IOException {
+		if (tolerance < 0)
+			throw new IllegalArgumentException(
+					"The tolerance of an adaptive export cannot be negative.");
+		final ExportStatistics statistics = new ExportStatistics();
+		final long startBytes = out.getBytesWritten();
+		final int sampleCount = getSampleCount(index);
+		statistics.samples = sampleCount;
+		if (sampleCount == 0)
+			return statistics;
+		final long lastTime = 1 + (long) (sampleCount - 1) * timePerStep;
+		final AdaptiveSampler sampler = new AdaptiveSampler(index, out,
+				tolerance * Math.PI / 512);
+		final long[] keyTimes = getKeyTimes(index);
+		long previous = 1;
+		for (int i = 0; i < keyTimes.length; i++) {
+			if (keyTimes[i] > previous && keyTimes[i] < lastTime) {
+				sampler.sample(previous, keyTimes[i]);
+				previous = keyTimes[i];
+			}
+		}
+		sampler.sample(previous, lastTime);
+		sampler.finish(lastTime);
+		statistics.samplesWritten = sampler.samplesWritten;
+
+		// the bytes that a normal export would have taken
+		final EntRagdollEncoder encoder = new EntRagdollEncoder();
+		final int[] angles = new int[EntRagdollEncoder.ANGLE_COUNT];
+		long fullBytes = 0;
+		for (int sample = 0; sample < sampleCount; sample++) {
+			final long time = 1 + (long) sample * timePerStep;
+			fullBytes += encoder.encode((time == 1) ? 1 : timePerStep, ref,
+					argTime + 3 * (time + timePerStep), argTime + 3 * time,
+					angles, time);
+		}
+		statistics.bytesWritten = out.getBytesWritten() - startBytes;
+		statistics.bytesSaved = fullBytes - statistics.bytesWritten;
+		return statistics;
+	}
+
+	/**
+	 * Returns the number of samples an export of the given animation contains.
+	 * Sample k is taken at time 1+k*timePerStep, and samples continue until
+	 * one step past the last KeyFrame.
+	 * 
+	 * @param index
+	 *            the snapshot of the animation
+	 * @return the number of samples
+	 */
+	public int getSampleCount(final BoneTrackIndex index) {
+		final long limit = index.getEndTime() + timePerStep - 1;
+		if (limit <= 0)
+			return 0;
+		return (int) ((limit + timePerStep - 1) / timePerStep);
+	}
+
+	/*
+	 * Returns the distinct times of the KeyFrames that set at least one bone,
+	 * in increasing order.
+	 */
+	private static long[] getKeyTimes(final BoneTrackIndex index) {
+		int count = 0;
+		for (int i = 0; i < 11; i++) {
+			count += index.getKeyCount(i);
+		}
+		final long[] times = new long[count];
+		count = 0;
+		for (int i = 0; i < 11; i++) {
+			for (int key = 0; key < index.getKeyCount(i); key++) {
+				times[count++] = index.getTime(i, key);
+			}
+		}
+		Arrays.sort(times);
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || times[i] != times[distinct - 1])
+				times[distinct++] = times[i];
+		}
+		return Arrays.copyOf(times, distinct);
+	}
+
+	/*
+	 * Places the samples of an adaptive export. Each span between two samples
+	 * that must be written is split at its worst grid time until every grid
+	 * time is within the tolerance of the straight line between the samples
+	 * around it. Spans are split depth first, left before right, so samples
+	 * are found in increasing order and can be written as they are found.
+	 * Each sample is written once the time of the next one is known, since
+	 * its first time argument depends on it.
+	 */
+	private class AdaptiveSampler {
+
+		private final BoneTrackIndex index;
+		private final DemoWriter out;
+		private final double tolerance;
+		private final BoneTrackCursor cursor = new BoneTrackCursor();
+		private final EntRagdollEncoder encoder = new EntRagdollEncoder();
+		private final double[] start = new double[FigurePositionInterpolator.POSE_LENGTH];
+		private final double[] end = new double[FigurePositionInterpolator.POSE_LENGTH];
+		private final double[] pose = new double[FigurePositionInterpolator.POSE_LENGTH];
+		private final int[] angles = new int[EntRagdollEncoder.ANGLE_COUNT];
+		private final ArrayDeque<long[]> spans = new ArrayDeque<long[]>();
+
+		private long pendingTime = -1;
+		private long writtenTime = 0;
+		int samplesWritten = 0;
+
+		AdaptiveSampler(final BoneTrackIndex index, final DemoWriter out,
+				final double tolerance) {
+			this.index = index;
+			this.out = out;
+			this.tolerance = tolerance;
+		}
+
+		/*
+		 * Places the samples from startTime (inclusive) up to endTime
+		 * (exclusive). endTime is placed by the next call or by finish.
+		 */
+		void sample(final long startTime, final long endTime)
+				throws IOException {
+			spans.push(new long[] { startTime, endTime });
+			while (!spans.isEmpty()) {
+				final long[] span = spans.pop();
+				final long split = findWorstTime(span[0], span[1]);
+				if (split < 0) {
+					place(span[0]);
+				} else {
+					spans.push(new long[] { split, span[1] });
+					spans.push(new long[] { span[0], split });
+				}
+			}
+		}
+
+		/*
+		 * Places the final sample and writes any sample still pending.
+		 */
+		void finish(final long lastTime) throws IOException {
+			place(lastTime);
+			write(lastTime + timePerStep);
+		}
+
+		/*
+		 * Returns the grid time between startTime and endTime that strays
+		 * furthest from the line between them, or -1 if none strays further
+		 * than the tolerance.
+		 */
+		private long findWorstTime(final long startTime, final long endTime) {
+			long time = 1 + ((startTime - 1) / timePerStep + 1) * timePerStep;
+			if (time >= endTime)
+				return -1;
+			index.evaluatePose(startTime, start, cursor);
+			index.evaluatePose(endTime, end, cursor);
+			final double duration = endTime - startTime;
+			long worstTime = -1;
+			double worstError = tolerance;
+			for (; time < endTime; time += timePerStep) {
+				index.evaluatePose(time, pose, cursor);
+				final double fraction = (time - startTime) / duration;
+				for (int i = 0; i < pose.length; i++) {
+					final double error = Math.abs(pose[i]
+							- ((1 - fraction) * start[i] + fraction * end[i]));
+					if (error > worstError) {
+						worstError = error;
+						worstTime = time;
+					}
+				}
+			}
+			return worstTime;
+		}
+
+		private void place(final long time) throws IOException {
+			if (time == pendingTime)
+				return;
+			write(time);
+			pendingTime = time;
+		}
+
+		/*
+		 * Writes the pending sample, now that the next sample time is known.
+		 */
+		private void write(final long nextTime) throws IOException {
+			if (pendingTime < 0)
+				return;
+			index.evaluatePose(pendingTime, pose, cursor);
+			EntRagdollEncoder.quantize(pose, angles);
+			encoder.writeSample(out, pendingTime - writtenTime, ref, argTime
+					+ 3 * nextTime, argTime + 3 * pendingTime, angles,
+					pendingTime);
+			writtenTime = pendingTime;
+			samplesWritten++;
+		}
+
+	}
+
+	/*
+	 * Writes the lines of samples first (inclusive) through end (exclusive).
+	 * Each line depends only on its own sample time, so any range of samples
+	 * can be written independently of the others.
+	 */
+	private void writeSamples(final BoneTrackIndex index, final int first,
+			final int end, final DemoWriter out) throws IOException {
+		final double[] pose = new double[FigurePositionInterpolator.POSE_LENGTH];
+		final int[] angles = new int[EntRagdollEncoder.ANGLE_COUNT];
+		final BoneTrackCursor cursor = new BoneTrackCursor();
+		final EntRagdollEncoder encoder = new EntRagdollEncoder();
+		for (int sample = first; sample < end; sample++) {
+			final long time = 1 + (long) sample * timePerStep;
+			index.evaluatePose(time, pose, cursor);
+			// TODO export keyframes explicitly
+			EntRagdollEncoder.quantize(pose, angles);
+			encoder.writeSample(out, (time == 1) ? 1 : timePerStep, ref, argTime
+					+ 3 * (time + timePerStep), argTime + 3 * time, angles, time);
+		}
+	}
+
+	/**
+	 * Simple getter.
+	 * 
+	 * @return the timePerStep
+	 */
+	public final int getTimePerStep() {
+		return timePerStep;
+	}
+
+	/**
+	 * Simple getter.
+	 * 
+	 * @return the ref
+	 */
+	public final int getRef() {
+		return ref;
+	}
+
+	/**
+	 * Simple getter.
+	 * 
+	 * @return the argTime
+	 */
+	public final long getArgTime() {
+		return argTime;
+	}
+
+}
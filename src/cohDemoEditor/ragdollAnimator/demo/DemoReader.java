@@ -0,0 +1,302 @@
+package cohDemoEditor.ragdollAnimator.demo;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.vecmath.Vector4d;
+
+import cohDemoEditor.ragdollAnimator.FigurePositionInterpolator;
+import cohDemoEditor.ragdollAnimator.KeyFrame;
+import cohDemoEditor.ragdollAnimator.KeyFrameGrid;
+
+/**
+ * A DemoReader reads the EntRagdoll commands back out of a .cohdemo file. The
+ * file is read one line at a time, so only the current line and the last pose
+ * of each entity are held in memory no matter how long the demo is.
+ *
+ * Every line of a demo starts with the time since the previous line, followed
+ * by the entity reference and the command. The reader adds up the times of
+ * all lines, so {@link #getTime()} is the time of the current command since
+ * the start of the demo.
+ *
+ * The angles of an EntRagdoll command are wrapped into the range 0-1024. The
+ * reader unwraps each angle to whichever turn is closest to the previous
+ * angle of the same entity, so a bone that spins keeps spinning instead of
+ * jumping back a whole turn.
+ */
+public class DemoReader implements Closeable {
+
+	/**
+	 * The time given to the first sample by {@link #readGrid(Reader, int)}.
+	 * It matches the time of the first sample written by a DemoExporter, so an
+	 * exported animation can be read back and exported again unchanged.
+	 */
+	public static final long FIRST_SAMPLE_TIME = 1;
+
+	private static final String ENT_RAGDOLL = "EntRagdoll";
+
+	private final BufferedReader in;
+	private final boolean filtered;
+	private final int filterRef;
+
+	/*
+	 * The last unwrapped angles of each entity, in CoH units.
+	 */
+	private final Map<Integer, int[]> lastAngles = new HashMap<Integer, int[]>();
+
+	private final double[] pose = new double[FigurePositionInterpolator.POSE_LENGTH];
+	private final int[] tokenStarts = new int[8];
+	private final int[] tokenEnds = new int[8];
+	private long time = 0;
+	private int ref;
+	private int lineNumber = 0;
+
+	/**
+	 * Creates a new DemoReader that reads the EntRagdoll commands of every
+	 * entity.
+	 *
+	 * @param in
+	 *            the demo to read
+	 */
+	public DemoReader(Reader in) {
+		this(in, false, 0);
+	}
+
+	/**
+	 * Creates a new DemoReader that reads only the EntRagdoll commands of the
+	 * given entity.
+	 *
+	 * @param in
+	 *            the demo to read
+	 * @param ref
+	 *            the entity reference to read
+	 */
+	public DemoReader(Reader in, int ref) {
+		this(in, true, ref);
+	}
+
+	private DemoReader(Reader in, boolean filtered, int filterRef) {
+		if (in == null)
+			throw new IllegalArgumentException(
+					"Cannot create a DemoReader without a source.");
+		this.in = (in instanceof BufferedReader) ? (BufferedReader) in
+				: new BufferedReader(in);
+		this.filtered = filtered;
+		this.filterRef = filterRef;
+	}
+
+	/**
+	 * Advances to the next EntRagdoll command, skipping every other command
+	 * and the commands of any other entity.
+	 *
+	 * @return true if a command was read, or false at the end of the demo
+	 * @throws IOException
+	 *             if the demo cannot be read or an EntRagdoll command is
+	 *             malformed
+	 */
+	public boolean next() throws IOException {
+		String line;
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			final int count = tokenize(line);
+			if (count == 0)
+				continue;
+			time += parseLong(line, 0);
+			if (count < 7 || !line.regionMatches(tokenStarts[2], ENT_RAGDOLL, 0,
+					ENT_RAGDOLL.length())
+					|| tokenEnds[2] - tokenStarts[2] != ENT_RAGDOLL.length())
+				continue;
+			if (parseLong(line, 3) != 11)
+				continue;
+			final int lineRef = (int) parseLong(line, 1);
+			if (filtered && lineRef != filterRef)
+				continue;
+			decode(line, lineRef);
+			ref = lineRef;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the time of the current command since the start of the demo.
+	 *
+	 * @return the time of the current command
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Simple getter.
+	 *
+	 * @return the entity reference of the current command
+	 */
+	public int getRef() {
+		return ref;
+	}
+
+	/**
+	 * Copies the pose of the current command into the given array, in the
+	 * layout used by FigurePositionInterpolator.evaluatePose.
+	 *
+	 * @param destination
+	 *            an array of at least POSE_LENGTH doubles, or {@code null} to
+	 *            allocate a new one
+	 * @return the pose of the current command
+	 */
+	public double[] getPose(double[] destination) {
+		if (destination == null)
+			destination = new double[pose.length];
+		System.arraycopy(pose, 0, destination, 0, pose.length);
+		return destination;
+	}
+
+	/**
+	 * Closes the underlying Reader.
+	 */
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Reads every EntRagdoll command of the given entity into a new
+	 * KeyFrameGrid, with one KeyFrame for each command. The first command is
+	 * placed at {@link #FIRST_SAMPLE_TIME} and also sets the KeyFrame at time
+	 * 0; the rest keep their times relative to it. All rampRatios are 0, so the
+	 * grid plays back linearly between samples. The Reader is not closed.
+	 *
+	 * @param in
+	 *            the demo to read
+	 * @param ref
+	 *            the entity reference to read
+	 * @return the animation of that entity
+	 * @throws IOException
+	 *             if the demo cannot be read or an EntRagdoll command is
+	 *             malformed
+	 */
+	public static KeyFrameGrid readGrid(Reader in, int ref) throws IOException {
+		final DemoReader reader = new DemoReader(in, ref);
+		final List<KeyFrame> frames = new ArrayList<KeyFrame>();
+		long firstTime = -1;
+		while (reader.next()) {
+			if (firstTime < 0) {
+				firstTime = reader.getTime() - FIRST_SAMPLE_TIME;
+				final KeyFrame first = new KeyFrame();
+				reader.setPositions(first);
+				frames.add(first);
+			}
+			final KeyFrame kf = new KeyFrame();
+			kf.setTime(reader.getTime() - firstTime);
+			reader.setPositions(kf);
+			frames.add(kf);
+		}
+		return new KeyFrameGrid(frames);
+	}
+
+	private void setPositions(final KeyFrame kf) {
+		for (int i = 0; i < 11; i++) {
+			kf.set(i, new Vector4d(pose[3 * i], pose[3 * i + 1],
+					pose[3 * i + 2], 0));
+		}
+	}
+
+	/*
+	 * Decodes the 33 hex angles of an EntRagdoll command into pose.
+	 */
+	private void decode(final String line, final int lineRef)
+			throws IOException {
+		final int start = tokenStarts[6];
+		if (tokenEnds[6] - start != 8 * pose.length)
+			throw new IOException("Malformed EntRagdoll angles on line "
+					+ lineNumber + ".");
+		int[] angles = lastAngles.get(lineRef);
+		final boolean first = (angles == null);
+		if (first) {
+			angles = new int[pose.length];
+			lastAngles.put(lineRef, angles);
+		}
+		for (int i = 0; i < pose.length; i++) {
+			int angle = 0;
+			for (int j = start + 8 * i; j < start + 8 * i + 8; j++) {
+				final int digit = Character.digit(line.charAt(j), 16);
+				if (digit < 0)
+					throw new IOException("Malformed EntRagdoll angles on line "
+							+ lineNumber + ".");
+				angle = (angle << 4) | digit;
+			}
+			if (!first) {
+				// pick the turn closest to the previous angle
+				angle += 1024 * Math.round((angles[i] - angle) / 1024.0);
+			}
+			angles[i] = angle;
+			pose[i] = toRadians(angle, i % 3 == 0);
+		}
+	}
+
+	/*
+	 * The inverse of KeyFrame.radiansToCoH. That conversion truncates, so
+	 * every CoH angle stands for a whole unit's worth of radians. Returning
+	 * the middle of that unit, rather than its edge as KeyFrame.coHToRadians
+	 * does, makes sure the angle converts back to the same CoH angle.
+	 */
+	private static double toRadians(final int cohAngle, final boolean negate) {
+		final int units = cohAngle - 512;
+		final double middle = (units == 0) ? 0 : units + 0.5
+				* Integer.signum(units);
+		return (negate ? -Math.PI : Math.PI) * middle / 512;
+	}
+
+	/*
+	 * Finds the start and end of the first few whitespace separated tokens of
+	 * the line, and returns how many were found.
+	 */
+	private int tokenize(final String line) {
+		int count = 0;
+		int i = 0;
+		final int length = line.length();
+		while (count < tokenStarts.length) {
+			while (i < length && Character.isWhitespace(line.charAt(i)))
+				i++;
+			if (i == length)
+				break;
+			tokenStarts[count] = i;
+			while (i < length && !Character.isWhitespace(line.charAt(i)))
+				i++;
+			tokenEnds[count++] = i;
+		}
+		return count;
+	}
+
+	/*
+	 * Parses the given token as a number without creating a substring.
+	 */
+	private long parseLong(final String line, final int token)
+			throws IOException {
+		int i = tokenStarts[token];
+		final int end = tokenEnds[token];
+		final boolean negative = line.charAt(i) == '-';
+		if (negative)
+			i++;
+		if (i == end)
+			throw new IOException("Expected a number on line " + lineNumber
+					+ ".");
+		long value = 0;
+		for (; i < end; i++) {
+			final char c = line.charAt(i);
+			if (c < '0' || c > '9')
+				throw new IOException("Expected a number on line "
+						+ lineNumber + ".");
+			value = 10 * value + (c - '0');
+		}
+		return negative ? -value : value;
+	}
+
+}
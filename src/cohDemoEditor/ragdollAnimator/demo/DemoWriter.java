@@ -0,0 +1,241 @@
+package cohDemoEditor.ragdollAnimator.demo;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A DemoWriter writes .cohdemo text to a Writer, an OutputStream or a
+ * WritableByteChannel through a fixed-size buffer. However long the
+ * animation, the only memory used is the buffer itself, so exports can be
+ * streamed straight to a file.
+ * 
+ * Demo files are plain ASCII. When writing to an OutputStream or a channel,
+ * any character outside of ASCII is written as '?'.
+ */
+public class DemoWriter implements Appendable, Flushable, Closeable {
+
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private final Writer writer;
+	private final OutputStream outputStream;
+	private final WritableByteChannel channel;
+
+	private final byte[] buffer;
+	private final char[] charBuffer;
+	private final ByteBuffer byteBuffer;
+	private int position = 0;
+	private long bytesWritten = 0;
+
+	/**
+	 * Creates a new DemoWriter that writes to the given Writer.
+	 * 
+	 * @param writer
+	 *            the destination
+	 */
+	public DemoWriter(Writer writer) {
+		this(writer, null, null, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a new DemoWriter that writes to the given OutputStream.
+	 * 
+	 * @param outputStream
+	 *            the destination
+	 */
+	public DemoWriter(OutputStream outputStream) {
+		this(null, outputStream, null, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a new DemoWriter that writes to the given channel.
+	 * 
+	 * @param channel
+	 *            the destination
+	 */
+	public DemoWriter(WritableByteChannel channel) {
+		this(null, null, channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	private DemoWriter(Writer writer, OutputStream outputStream,
+			WritableByteChannel channel, int bufferSize) {
+		if (writer == null && outputStream == null && channel == null)
+			throw new IllegalArgumentException(
+					"Cannot create a DemoWriter without a destination.");
+		this.writer = writer;
+		this.outputStream = outputStream;
+		this.channel = channel;
+		this.buffer = new byte[bufferSize];
+		this.charBuffer = (writer == null) ? null : new char[bufferSize];
+		this.byteBuffer = (channel == null) ? null : ByteBuffer.wrap(buffer);
+	}
+
+	/**
+	 * Appends a single character.
+	 * 
+	 * @return this
+	 */
+	@Override
+	public DemoWriter append(char c) throws IOException {
+		if (position == buffer.length)
+			flushBuffer();
+		buffer[position++] = (c < 128) ? (byte) c : (byte) '?';
+		return this;
+	}
+
+	/**
+	 * Appends all characters of the given sequence.
+	 * 
+	 * @return this
+	 */
+	@Override
+	public DemoWriter append(CharSequence csq) throws IOException {
+		return append(csq, 0, csq.length());
+	}
+
+	/**
+	 * Appends the characters of the given sequence from start (inclusive) to
+	 * end (exclusive).
+	 * 
+	 * @return this
+	 */
+	@Override
+	public DemoWriter append(CharSequence csq, int start, int end)
+			throws IOException {
+		for (int i = start; i < end; i++) {
+			append(csq.charAt(i));
+		}
+		return this;
+	}
+
+	/**
+	 * Appends already encoded ASCII bytes, such as the output of another
+	 * DemoWriter.
+	 * 
+	 * @param bytes
+	 *            the bytes to append
+	 * @param offset
+	 *            the index of the first byte to append
+	 * @param length
+	 *            the number of bytes to append
+	 * @return this
+	 */
+	public DemoWriter write(byte[] bytes, int offset, int length)
+			throws IOException {
+		while (length > 0) {
+			if (position == buffer.length)
+				flushBuffer();
+			final int count = Math.min(length, buffer.length - position);
+			System.arraycopy(bytes, offset, buffer, position, count);
+			position += count;
+			offset += count;
+			length -= count;
+		}
+		return this;
+	}
+
+	/**
+	 * Appends the decimal representation of the given number.
+	 * 
+	 * @param value
+	 *            the number to append
+	 * @return this
+	 */
+	public DemoWriter append(long value) throws IOException {
+		if (value < 0) {
+			if (value == Long.MIN_VALUE)
+				return append(Long.toString(value));
+			append('-');
+			value = -value;
+		}
+		long divisor = 1;
+		while (value / divisor >= 10) {
+			divisor *= 10;
+		}
+		while (divisor > 0) {
+			append((char) ('0' + (value / divisor) % 10));
+			divisor /= 10;
+		}
+		return this;
+	}
+
+	/**
+	 * Formats a CoH angle as an 8-char uppercase hex string, as used by
+	 * EntRagdoll commands. The angle is first wrapped into the range 0-1024.
+	 * 
+	 * @param cohAngle
+	 *            the angle to append
+	 * @return this
+	 */
+	public DemoWriter appendHex(int cohAngle) throws IOException {
+		return write(EntRagdollEncoder.HEX_DIGITS, 8 * EntRagdollEncoder
+				.wrap(cohAngle), 8);
+	}
+
+	/**
+	 * Returns the number of bytes written so far, including any that are
+	 * still buffered.
+	 * 
+	 * @return the number of bytes written
+	 */
+	public long getBytesWritten() {
+		return bytesWritten + position;
+	}
+
+	/**
+	 * Writes any buffered output and flushes the destination.
+	 */
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		if (writer != null) {
+			writer.flush();
+		} else if (outputStream != null) {
+			outputStream.flush();
+		}
+	}
+
+	/**
+	 * Writes any buffered output and closes the destination.
+	 */
+	@Override
+	public void close() throws IOException {
+		flushBuffer();
+		if (writer != null) {
+			writer.close();
+		} else if (outputStream != null) {
+			outputStream.close();
+		} else {
+			channel.close();
+		}
+	}
+
+	/*
+	 * Empties the buffer into the destination.
+	 */
+	private void flushBuffer() throws IOException {
+		if (position == 0)
+			return;
+		if (writer != null) {
+			for (int i = 0; i < position; i++) {
+				charBuffer[i] = (char) buffer[i];
+			}
+			writer.write(charBuffer, 0, position);
+		} else if (outputStream != null) {
+			outputStream.write(buffer, 0, position);
+		} else {
+			byteBuffer.clear();
+			byteBuffer.limit(position);
+			while (byteBuffer.hasRemaining()) {
+				channel.write(byteBuffer);
+			}
+		}
+		bytesWritten += position;
+		position = 0;
+	}
+
+}
@@ -0,0 +1,203 @@
+package cohDemoEditor.ragdollAnimator.demo;
+
+import java.io.IOException;
+
+import cohDemoEditor.ragdollAnimator.FigurePositionInterpolator;
+
+/**
+ * An EntRagdollEncoder formats EntRagdoll and Chat commands without allocating
+ * any memory. Poses are first quantized into CoH angles, and each angle is
+ * then copied from a precomputed table of 8-char uppercase hex strings. A
+ * whole sample is assembled in a reusable line buffer and handed to the
+ * DemoWriter in one piece.
+ *
+ * An EntRagdollEncoder is not thread-safe; each thread that exports should use
+ * its own encoder.
+ */
+public final class EntRagdollEncoder {
+
+	/**
+	 * The number of CoH angles in a quantized pose.
+	 */
+	public static final int ANGLE_COUNT = FigurePositionInterpolator.POSE_LENGTH;
+
+	/*
+	 * The 8-char hex strings for every CoH angle from 0 to 1024 inclusive. The
+	 * string for angle a is stored at 8a through 8a+7. 1024 is included since
+	 * the exporter has always written a full turn as 1024 rather than 0.
+	 */
+	static final byte[] HEX_DIGITS = new byte[8 * 1025];
+
+	static {
+		final byte[] digits = "0123456789ABCDEF".getBytes();
+		for (int angle = 0; angle <= 1024; angle++) {
+			for (int i = 0; i < 8; i++) {
+				HEX_DIGITS[8 * angle + i] = digits[(angle >>> (28 - 4 * i)) & 0xF];
+			}
+		}
+	}
+
+	private static final byte[] ENT_RAGDOLL = " EntRagdoll 11 ".getBytes();
+	private static final byte[] CHAT = " Chat 10 0 \"".getBytes();
+
+	/*
+	 * Large enough for five 20-digit numbers, 33 angles and the fixed text.
+	 */
+	private final byte[] line = new byte[512];
+	private int length;
+
+	/**
+	 * Creates a new EntRagdollEncoder.
+	 */
+	public EntRagdollEncoder() {
+	}
+
+	/**
+	 * Wraps a CoH angle into the range 0-1024. Negative angles wrap to 0-1023
+	 * and positive angles wrap to 1-1024, which gives the same result as
+	 * repeatedly adding or subtracting 1024.
+	 *
+	 * @param cohAngle
+	 *            the angle to wrap
+	 * @return the wrapped angle
+	 */
+	public static int wrap(int cohAngle) {
+		if (cohAngle < 0) {
+			final int angle = cohAngle % 1024;
+			return angle == 0 ? 0 : angle + 1024;
+		}
+		if (cohAngle > 1024) {
+			return (cohAngle - 1) % 1024 + 1;
+		}
+		return cohAngle;
+	}
+
+	/**
+	 * Converts a pose in radians into wrapped CoH angles. This is the same
+	 * conversion as KeyFrame.radiansToCoH followed by {@link #wrap(int)}, so
+	 * two poses quantize to the same angles exactly when they would be
+	 * exported as the same hex strings.
+	 *
+	 * @param pose
+	 *            the pitch, yaw and roll of each bone, as returned by
+	 *            FigurePositionInterpolator.evaluatePose
+	 * @param angles
+	 *            an array of at least ANGLE_COUNT ints to receive the angles
+	 * @return angles
+	 */
+	public static int[] quantize(final double[] pose, final int[] angles) {
+		for (int i = 0; i < ANGLE_COUNT; i += 3) {
+			angles[i] = wrap((int) (-512 * pose[i] / Math.PI) + 512);
+			angles[i + 1] = wrap((int) (512 * pose[i + 1] / Math.PI) + 512);
+			angles[i + 2] = wrap((int) (512 * pose[i + 2] / Math.PI) + 512);
+		}
+		return angles;
+	}
+
+	/**
+	 * Writes one sample: an EntRagdoll line with the given angles, followed by
+	 * a Chat line with the sample time.
+	 *
+	 * @param out
+	 *            the destination
+	 * @param delta
+	 *            the time since the previous command
+	 * @param ref
+	 *            the entity reference that the commands apply to
+	 * @param firstArg
+	 *            the first EntRagdoll time argument
+	 * @param secondArg
+	 *            the second EntRagdoll time argument
+	 * @param angles
+	 *            the quantized pose, as returned by
+	 *            {@link #quantize(double[], int[])}
+	 * @param time
+	 *            the sample time written to the Chat line
+	 * @throws IOException
+	 *             if the destination cannot be written
+	 */
+	public void writeSample(final DemoWriter out, final long delta,
+			final int ref, final long firstArg, final long secondArg,
+			final int[] angles, final long time) throws IOException {
+		encode(delta, ref, firstArg, secondArg, angles, time);
+		writeTo(out);
+	}
+
+	/**
+	 * Formats one sample into the line buffer without writing it anywhere.
+	 * The parameters are the same as for
+	 * {@link #writeSample(DemoWriter, long, int, long, long, int[], long)}.
+	 *
+	 * @return the number of bytes in the formatted sample
+	 */
+	public int encode(final long delta, final int ref, final long firstArg,
+			final long secondArg, final int[] angles, final long time) {
+		length = 0;
+		putLong(delta);
+		put((byte) ' ');
+		putLong(ref);
+		put(ENT_RAGDOLL);
+		putLong(firstArg);
+		put((byte) ' ');
+		putLong(secondArg);
+		put((byte) ' ');
+		for (int i = 0; i < ANGLE_COUNT; i++) {
+			System.arraycopy(HEX_DIGITS, 8 * wrap(angles[i]), line, length, 8);
+			length += 8;
+		}
+		put((byte) '\n');
+		put((byte) '0');
+		put((byte) ' ');
+		putLong(ref);
+		put(CHAT);
+		putLong(time);
+		put((byte) '"');
+		put((byte) '\n');
+		return length;
+	}
+
+	/**
+	 * Writes the most recently encoded sample.
+	 *
+	 * @param out
+	 *            the destination
+	 * @throws IOException
+	 *             if the destination cannot be written
+	 */
+	public void writeTo(final DemoWriter out) throws IOException {
+		out.write(line, 0, length);
+	}
+
+	private void put(final byte b) {
+		line[length++] = b;
+	}
+
+	private void put(final byte[] bytes) {
+		System.arraycopy(bytes, 0, line, length, bytes.length);
+		length += bytes.length;
+	}
+
+	/*
+	 * Writes the decimal digits of value. The digits are generated from the
+	 * negated value so that Long.MIN_VALUE needs no special case.
+	 */
+	private void putLong(final long value) {
+		long negative = value;
+		if (value < 0) {
+			put((byte) '-');
+		} else {
+			negative = -value;
+		}
+		final int start = length;
+		do {
+			line[length++] = (byte) ('0' - negative % 10);
+			negative /= 10;
+		} while (negative != 0);
+		for (int i = start, j = length - 1; i < j; i++, j--) {
+			final byte b = line[i];
+			line[i] = line[j];
+			line[j] = b;
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+package cohDemoEditor.ragdollAnimator.demo;
+
+/**
+ * ExportStatistics records how much of an animation an export actually wrote.
+ * Each sample is written as two lines, an EntRagdoll line and a Chat line, so
+ * every sample that is skipped saves two lines.
+ */
+public class ExportStatistics {
+
+	int samples;
+	int samplesWritten;
+	long bytesWritten;
+	long bytesSaved;
+
+	/**
+	 * Simple getter.
+	 * 
+	 * @return the number of samples taken from the animation
+	 */
+	public int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Simple getter.
+	 * 
+	 * @return the number of samples written
+	 */
+	public int getSamplesWritten() {
+		return samplesWritten;
+	}
+
+	/**
+	 * Returns the number of samples that were skipped because the pose did not
+	 * change.
+	 * 
+	 * @return the number of samples skipped
+	 */
+	public int getSamplesSkipped() {
+		return samples - samplesWritten;
+	}
+
+	/**
+	 * Returns the number of lines written.
+	 * 
+	 * @return the number of lines written
+	 */
+	public long getLinesWritten() {
+		return 2L * samplesWritten;
+	}
+
+	/**
+	 * Returns the number of lines saved compared to writing every sample.
+	 * 
+	 * @return the number of lines saved
+	 */
+	public long getLinesSaved() {
+		return 2L * getSamplesSkipped();
+	}
+
+	/**
+	 * Simple getter.
+	 * 
+	 * @return the number of bytes written
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Returns the number of bytes saved compared to writing every sample.
+	 * 
+	 * @return the number of bytes saved
+	 */
+	public long getBytesSaved() {
+		return bytesSaved;
+	}
+
+	@Override
+	public String toString() {
+		return samplesWritten + " of " + samples + " samples written, "
+				+ getLinesSaved() + " lines and " + bytesSaved
+				+ " bytes saved";
+	}
+
+}
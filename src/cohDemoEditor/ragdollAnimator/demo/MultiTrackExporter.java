@@ -0,0 +1,163 @@
+package cohDemoEditor.ragdollAnimator.demo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import cohDemoEditor.ragdollAnimator.BoneTrackCursor;
+import cohDemoEditor.ragdollAnimator.BoneTrackIndex;
+import cohDemoEditor.ragdollAnimator.FigurePositionInterpolator;
+
+/**
+ * A MultiTrackExporter writes the animations of several figures into a single
+ * demo. Each figure is a track with its own animation, entity reference and
+ * start time. The EntRagdoll commands of all tracks are merged into one
+ * stream ordered by time, and the time at the start of each line is the time
+ * since the line before it, whichever track that line came from.
+ *
+ * Tracks are never generated in full. Each track only knows its next sample,
+ * and a heap picks the track whose next sample is earliest, so the memory used
+ * per track is constant however long the animations are.
+ *
+ * The commands that create the entities (NEW, COSTUME and so on) are not
+ * written; those belong in the demo before the animation.
+ */
+public class MultiTrackExporter {
+
+	private final int timePerStep;
+	private final long argTime;
+	private final List<Track> tracks = new ArrayList<Track>();
+
+	/**
+	 * Creates a new MultiTrackExporter with no tracks.
+	 *
+	 * @param timePerStep
+	 *            the number of milliseconds between samples of each track
+	 * @param argTime
+	 *            the base time used for the EntRagdoll time arguments
+	 */
+	public MultiTrackExporter(int timePerStep, long argTime) {
+		if (timePerStep <= 0)
+			throw new IllegalArgumentException(
+					"A MultiTrackExporter needs a positive time per step.");
+		this.timePerStep = timePerStep;
+		this.argTime = argTime;
+	}
+
+	/**
+	 * Adds a track. A track that starts at time 0 is sampled at the same times
+	 * as a single DemoExporter would sample it.
+	 *
+	 * @param index
+	 *            the snapshot of the figure's animation
+	 * @param ref
+	 *            the entity reference of the figure
+	 * @param startTime
+	 *            the time in the demo at which the figure's animation starts
+	 */
+	public void addTrack(BoneTrackIndex index, int ref, long startTime) {
+		if (index == null || startTime < 0)
+			throw new IllegalArgumentException(
+					"A track needs an animation and a non-negative start time.");
+		tracks.add(new Track(tracks.size(), index, ref, startTime));
+	}
+
+	/**
+	 * Writes the merged commands of every track.
+	 *
+	 * @param out
+	 *            the destination
+	 * @throws IOException
+	 *             if the destination cannot be written
+	 */
+	public void export(DemoWriter out) throws IOException {
+		final PriorityQueue<Track> heap = new PriorityQueue<Track>(Math.max(1,
+				tracks.size()), TIME_ORDER);
+		for (Track track : tracks) {
+			track.reset();
+			if (track.hasNext())
+				heap.add(track);
+		}
+		final EntRagdollEncoder encoder = new EntRagdollEncoder();
+		long previousTime = 0;
+		while (!heap.isEmpty()) {
+			final Track track = heap.poll();
+			final long time = track.getNextTime();
+			encoder.writeSample(out, time - previousTime, track.ref, argTime
+					+ 3 * (time + timePerStep), argTime + 3 * time, track
+					.evaluateNext(), time);
+			previousTime = time;
+			if (track.hasNext())
+				heap.add(track);
+		}
+	}
+
+	/*
+	 * Orders tracks by their next sample time, and tracks with samples at the
+	 * same time in the order they were added.
+	 */
+	private static final Comparator<Track> TIME_ORDER = new Comparator<Track>() {
+		@Override
+		public int compare(Track a, Track b) {
+			final long ta = a.getNextTime();
+			final long tb = b.getNextTime();
+			if (ta != tb)
+				return (ta < tb) ? -1 : 1;
+			return a.order - b.order;
+		}
+	};
+
+	/*
+	 * A lazy stream of the samples of one track.
+	 */
+	private class Track {
+
+		final int order;
+		final BoneTrackIndex index;
+		final int ref;
+		final long startTime;
+		final int sampleCount;
+		private final BoneTrackCursor cursor = new BoneTrackCursor();
+		private final double[] pose = new double[FigurePositionInterpolator.POSE_LENGTH];
+		private final int[] angles = new int[EntRagdollEncoder.ANGLE_COUNT];
+		private int nextSample;
+
+		Track(int order, BoneTrackIndex index, int ref, long startTime) {
+			this.order = order;
+			this.index = index;
+			this.ref = ref;
+			this.startTime = startTime;
+			this.sampleCount = new DemoExporter(timePerStep, ref, argTime)
+					.getSampleCount(index);
+		}
+
+		void reset() {
+			nextSample = 0;
+		}
+
+		boolean hasNext() {
+			return nextSample < sampleCount;
+		}
+
+		/*
+		 * The time of the next sample in the demo.
+		 */
+		long getNextTime() {
+			return startTime + 1 + (long) nextSample * timePerStep;
+		}
+
+		/*
+		 * Quantizes the pose of the next sample and moves past it.
+		 */
+		int[] evaluateNext() {
+			index.evaluatePose(1 + (long) nextSample * timePerStep, pose,
+					cursor);
+			nextSample++;
+			return EntRagdollEncoder.quantize(pose, angles);
+		}
+
+	}
+
+}
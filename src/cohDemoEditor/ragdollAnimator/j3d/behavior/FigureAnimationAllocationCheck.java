@@ -0,0 +1,121 @@
+package cohDemoEditor.ragdollAnimator.j3d.behavior;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import javax.media.j3d.Transform3D;
+import javax.media.j3d.TransformGroup;
+import javax.vecmath.Matrix3d;
+import javax.vecmath.Vector3d;
+import javax.vecmath.Vector4d;
+
+import com.sun.management.ThreadMXBean;
+
+import cohDemoEditor.ragdollAnimator.FigurePositionInterpolator;
+import cohDemoEditor.ragdollAnimator.KeyFrame;
+import cohDemoEditor.ragdollAnimator.KeyFrameGrid;
+
+/**
+ * Checks the per-frame work of FigureAnimationBehavior. Run its main method;
+ * it throws an AssertionError (and so exits with a non-zero status) if a check
+ * fails.
+ *
+ * It checks that eulerToMatrix matches the product of three setEuler
+ * rotations that the behavior used to build, and that applyPose allocates
+ * nothing once it has warmed up. The second check needs a JVM that can count
+ * the bytes allocated by a thread (com.sun.management.ThreadMXBean), and uses
+ * whatever TransformGroup is on the classpath, so it only covers the real
+ * setTransform when run against the real Java3D.
+ */
+public class FigureAnimationAllocationCheck {
+
+	private static final int FRAMES = 100000;
+	private static final int WARM_UP_FRAMES = 10 * FRAMES;
+
+	/**
+	 * Runs the checks.
+	 *
+	 * @param args
+	 */
+	public static final void main(String[] args) {
+		checkEulerToMatrix();
+		checkApplyPoseAllocation();
+	}
+
+	private static void checkEulerToMatrix() {
+		final Random random = new Random(1);
+		final Matrix3d matrix = new Matrix3d();
+		double error = 0;
+		for (int n = 0; n < 1000; n++) {
+			final double x = random.nextDouble() * 4 * Math.PI - 2 * Math.PI;
+			final double y = random.nextDouble() * 4 * Math.PI - 2 * Math.PI;
+			final double z = random.nextDouble() * 4 * Math.PI - 2 * Math.PI;
+			final Transform3D xRot = new Transform3D();
+			final Transform3D yRot = new Transform3D();
+			final Transform3D zRot = new Transform3D();
+			xRot.setEuler(new Vector3d(x, 0, 0));
+			yRot.setEuler(new Vector3d(0, y, 0));
+			zRot.setEuler(new Vector3d(0, 0, z));
+			xRot.mul(zRot);
+			xRot.mul(yRot);
+			xRot.get(matrix);
+			matrix.sub(FigureAnimationBehavior.eulerToMatrix(x, y, z, null));
+			for (int i = 0; i < 3; i++) {
+				for (int j = 0; j < 3; j++) {
+					error = Math.max(error, Math.abs(matrix.getElement(i, j)));
+				}
+			}
+		}
+		System.out.println("eulerToMatrix error: " + error);
+		if (error > 1e-9)
+			throw new AssertionError("eulerToMatrix differs from setEuler by "
+					+ error);
+	}
+
+	private static void checkApplyPoseAllocation() {
+		final Object threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof ThreadMXBean))
+			throw new AssertionError(
+					"Cannot count allocated bytes on this JVM");
+		final ThreadMXBean counter = (ThreadMXBean) threads;
+		final long thread = Thread.currentThread().getId();
+
+		final Random random = new Random(1);
+		final KeyFrameGrid grid = new KeyFrameGrid();
+		for (int n = 1; n <= 100; n++) {
+			final KeyFrame kf = new KeyFrame();
+			kf.setTime(100L * n);
+			for (int i = 0; i < 11; i++) {
+				if (random.nextInt(3) == 0)
+					kf.set(i, new Vector4d(random.nextDouble(), random
+							.nextDouble(), random.nextDouble(), random
+							.nextDouble()));
+			}
+			grid.add(kf);
+		}
+		final FigurePositionInterpolator interpolator = new FigurePositionInterpolator();
+		interpolator.setKeyFrameGrid(grid);
+		final FigureAnimationBehavior behavior = new FigureAnimationBehavior();
+		behavior.setFigurePositionInterpolator(interpolator);
+		for (int i = 0; i < 11; i++) {
+			behavior.setTransformGroup(i, new TransformGroup());
+		}
+
+		// Warm up long enough for the JIT to finish compiling applyPose and
+		// everything it calls, which allocates a little on the way.
+		for (int n = 0; n < WARM_UP_FRAMES; n++) {
+			behavior.applyPose(n % 10000);
+		}
+		final long before = counter.getThreadAllocatedBytes(thread);
+		for (int n = 0; n < FRAMES; n++) {
+			behavior.applyPose(n % 10000);
+		}
+		final long allocated = counter.getThreadAllocatedBytes(thread)
+				- before;
+		System.out.println("applyPose allocated " + allocated + " bytes in "
+				+ FRAMES + " frames");
+		if (allocated != 0)
+			throw new AssertionError("applyPose allocated " + allocated
+					+ " bytes in " + FRAMES + " frames");
+	}
+
+}
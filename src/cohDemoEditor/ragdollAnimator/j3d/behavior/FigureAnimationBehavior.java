@@ -6,6 +6,7 @@ import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.vecmath.*;
 
+import cohDemoEditor.ragdollAnimator.BoneTrackCursor;
 import cohDemoEditor.ragdollAnimator.FigurePositionInterpolator;
 import cohDemoEditor.ragdollAnimator.swing.KeyFrameGridPanel;
 
@@ -30,6 +31,12 @@ public class FigureAnimationBehavior extends Behavior implements
 	private KeyFrameGridPanel kfgPanel;
 
 	private TransformGroup[] transforms = new TransformGroup[11];
+	private final double[] pose = new double[FigurePositionInterpolator.POSE_LENGTH];
+	private final BoneTrackCursor cursor = new BoneTrackCursor();
+	// Scratch space for applyPose. TransformGroup.setTransform copies the
+	// transform it is given, so one of each serves every bone.
+	private final Matrix3d rotation = new Matrix3d();
+	private final Transform3D transform = new Transform3D();
 
 	private final WakeupCriterion wakeupCriterion = (WakeupCriterion) new WakeupOnElapsedFrames(
 			0);
@@ -61,39 +68,27 @@ public class FigureAnimationBehavior extends Behavior implements
 				newAlphaValue++;
 			final long now = startTime
 					+ (long) (newAlphaValue * (endTime - startTime));
-			final Transform3D transform = new Transform3D();
-			final Vector4d v4d = new Vector4d();
-			// final Vector3d v3d = new Vector3d();
-			for (int i = 0; i < 11; i++) {
-				interpolator.getPosition(i, now, v4d);
-				// v3d.set(v4d.getX(), v4d.getY(), v4d.getZ());
-				Transform3D xRot = new Transform3D();
-				Transform3D yRot = new Transform3D();
-				Transform3D zRot = new Transform3D();
-				xRot.setEuler(new Vector3d(v4d.getX(),0,0));
-				yRot.setEuler(new Vector3d(0,v4d.getY(),0));
-				zRot.setEuler(new Vector3d(0,0,v4d.getZ()));
-				xRot.mul(zRot);
-				xRot.mul(yRot);
-				// transform.setEuler(v3d);
-				// v3d.scale(1/Math.PI);
-				// final double mag = v3d.length();
-				// final double angle = Math.abs(v3d.getX()) + Math.abs(v3d.getY()) + Math.abs(v3d.getZ());
-				// final double angle = mag;
-				transform.set(xRot);
-//				if (mag > 1e-12) {
-					// System.out.println("Bone " + i + ": (" + v3d.getX() + "," + v3d.getY() + "," + v3d.getZ() +") by " + d);
-					// transform.set(new AxisAngle4d(v3d.getX()/mag, v3d.getY()/mag, v3d.getZ()/mag, angle));
-					// transform.set(new Quat4d(v3d.getX(), v3d.getY(), v3d.getZ(), 1));
-//				} else {
-//					transform.setIdentity();
-//				}
-				transforms[i].setTransform(transform);
-			}
+			applyPose(now);
 		}
 		wakeupOn(wakeupCriterion);
 	}
 
+	/*
+	 * Evaluates the pose at the given time and sets each TransformGroup to it.
+	 * This runs every frame, so it allocates nothing: the pose, the cursor, the
+	 * rotation and the transform are all reused. Package-private for
+	 * FigureAnimationAllocationCheck.
+	 */
+	void applyPose(long time) {
+		interpolator.evaluatePose(time, pose, cursor);
+		for (int i = 0; i < 11; i++) {
+			eulerToMatrix(pose[3 * i], pose[3 * i + 1], pose[3 * i + 2],
+					rotation);
+			transform.set(rotation);
+			transforms[i].setTransform(transform);
+		}
+	}
+
 	/**
 	 * Getter for the FigurePositionInterpolator
 	 * 
@@ -244,6 +239,40 @@ public class FigureAnimationBehavior extends Behavior implements
 		this.enabled = enabled;
 	}
 
+	/**
+	 * Utility method that computes the rotation of a bone from its three
+	 * angles: the rotation by x about the X axis, times the rotation by z about
+	 * the Z axis, times the rotation by y about the Y axis. This is the same as
+	 * multiplying together three Transform3Ds set with setEuler, without
+	 * creating them. Note that this is not the inverse of matrixToEuler, which
+	 * follows the order used by setEuler itself.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param matrix
+	 *            the Matrix3d to store the rotation in, or null for a new one
+	 * @return matrix
+	 */
+	public static Matrix3d eulerToMatrix(double x, double y, double z,
+			Matrix3d matrix) {
+		final double sina = Math.sin(x), cosa = Math.cos(x);
+		final double sinb = Math.sin(y), cosb = Math.cos(y);
+		final double sinc = Math.sin(z), cosc = Math.cos(z);
+		if (matrix == null)
+			matrix = new Matrix3d();
+		matrix.m00 = cosc * cosb;
+		matrix.m01 = -sinc;
+		matrix.m02 = cosc * sinb;
+		matrix.m10 = cosa * sinc * cosb + sina * sinb;
+		matrix.m11 = cosa * cosc;
+		matrix.m12 = cosa * sinc * sinb - sina * cosb;
+		matrix.m20 = sina * sinc * cosb - cosa * sinb;
+		matrix.m21 = sina * cosc;
+		matrix.m22 = sina * sinc * sinb + cosa * cosb;
+		return matrix;
+	}
+
 	/**
 	 * Utility method that converts a rotation matrix to an Euler-angle vector.
 	 * This is meant to invert the Transform3D.setEuler method. We assume that
@@ -0,0 +1,573 @@
+package cohDemoEditor.ragdollAnimator.swing;
+
+import java.awt.*;
+import java.awt.event.*;
+import javax.swing.*;
+import javax.swing.event.*;
+import cohDemoEditor.ragdollAnimator.KeyFrame;
+import cohDemoEditor.ragdollAnimator.KeyFrameGrid;
+
+/**
+ * A DopeSheet draws a KeyFrameGrid as a timeline, with time running across and
+ * one row for each bone. Every KeyFrame that sets a bone has a mark in that
+ * bone's row: a diamond if the bone is ramped and a square if not. A line joins
+ * the marks of a bone that is interpolated through the KeyFrames in between.
+ *
+ * Unlike a JTable, which needs a column for every KeyFrame, a DopeSheet paints
+ * straight from the grid and only paints the part of the timeline that is
+ * visible. The first visible KeyFrame is found by its time, and painting
+ * follows the links between KeyFrames until it reaches the edge of the window.
+ * When many KeyFrames fall within a pixel or two only the first few are drawn,
+ * and the rest are skipped with another lookup by time, so the cost of a repaint
+ * depends on the width of the window rather than on the size of the grid.
+ *
+ * The selected KeyFrame is shared with the table of a KeyFrameGrid through the
+ * column selection model of the table, in which KeyFrame n is column n + 1.
+ *
+ * A DopeSheet is meant to be the view of a JScrollPane, such as the one made
+ * by createScrollPane. Holding down control while turning the mouse wheel
+ * zooms in and out around the mouse.
+ */
+@SuppressWarnings("serial")
+public class DopeSheet extends JComponent implements Scrollable,
+		TableModelListener, ListSelectionListener {
+
+	private static final int RULER_HEIGHT = 20;
+	private static final int ROW_HEIGHT = 16;
+
+	/*
+	 * Space to the left of time zero and to the right of the last KeyFrame, so
+	 * that their marks are drawn whole.
+	 */
+	private static final int MARGIN = 8;
+
+	/*
+	 * Half the width of the mark of a KeyFrame.
+	 */
+	private static final int KEY_SIZE = 4;
+
+	/*
+	 * KeyFrames closer together than this many pixels are drawn as one mark,
+	 * since their marks would mostly cover each other anyway.
+	 */
+	private static final int GROUP_WIDTH = 2;
+
+	/*
+	 * The number of KeyFrames merged into one mark before the rest of the
+	 * KeyFrames in the group are skipped.
+	 */
+	private static final int MAX_KEYS_PER_GROUP = 8;
+
+	private static final int MIN_TICK_SPACING = 60;
+
+	/*
+	 * The shortest span of time, in milliseconds, that zooming in can show.
+	 */
+	private static final long MIN_VISIBLE_TIME = 1000;
+
+	private static final double ZOOM_STEP = 1.25;
+
+	private static final int NO_SPAN = Integer.MIN_VALUE;
+
+	private KeyFrameGrid grid;
+	private final ListSelectionModel selectionModel;
+	private KeyFrame selected;
+
+	/*
+	 * Pixels per millisecond.
+	 */
+	private double scale = 0.1;
+
+	/*
+	 * Reused while painting, so that a repaint does not allocate.
+	 */
+	private final int[] spanStart = new int[11];
+	private final int[] xPoints = new int[4];
+	private final int[] yPoints = new int[4];
+
+	/**
+	 * Creates a new DopeSheet.
+	 *
+	 * @param grid
+	 *            the grid to draw
+	 * @param selectionModel
+	 *            the column selection model of the table showing the grid
+	 */
+	public DopeSheet(KeyFrameGrid grid, ListSelectionModel selectionModel) {
+		if (grid == null)
+			throw new IllegalArgumentException(
+					"Cannot construct a new DopeSheet with a null KeyFrameGrid");
+		if (selectionModel == null)
+			throw new IllegalArgumentException(
+					"Cannot construct a new DopeSheet with a null ListSelectionModel");
+		this.selectionModel = selectionModel;
+		setOpaque(true);
+		setBackground(UIManager.getColor("Table.background"));
+		setForeground(UIManager.getColor("Table.foreground"));
+		setKeyFrameGrid(grid);
+		selectionModel.addListSelectionListener(this);
+
+		addMouseListener(new MouseAdapter() {
+			@Override
+			public void mousePressed(MouseEvent e) {
+				requestFocusInWindow();
+				final KeyFrame kf = getKeyFrameAt(e.getX());
+				if (kf != null) {
+					final int column = DopeSheet.this.grid.indexOf(kf) + 1;
+					DopeSheet.this.selectionModel.setSelectionInterval(column,
+							column);
+				}
+			}
+		});
+		addMouseWheelListener(new MouseWheelListener() {
+			public void mouseWheelMoved(MouseWheelEvent e) {
+				if (e.isControlDown()) {
+					zoom(Math.pow(ZOOM_STEP, -e.getWheelRotation()), e.getX());
+				} else if (getParent() != null) {
+					// let the scroll pane scroll
+					getParent().dispatchEvent(
+							SwingUtilities.convertMouseEvent(DopeSheet.this, e,
+									getParent()));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Creates a scroll pane showing this DopeSheet, with the names of the bones
+	 * down the left side.
+	 *
+	 * @return a new scroll pane
+	 */
+	public JScrollPane createScrollPane() {
+		final JScrollPane scrollPane = new JScrollPane(this,
+				JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
+				JScrollPane.HORIZONTAL_SCROLLBAR_ALWAYS);
+		scrollPane.setRowHeaderView(new BoneNames());
+		return scrollPane;
+	}
+
+	/**
+	 * Sets the grid to draw.
+	 *
+	 * @param grid
+	 *            the new grid
+	 */
+	public void setKeyFrameGrid(KeyFrameGrid grid) {
+		if (grid == null)
+			throw new IllegalArgumentException(
+					"Cannot set the KeyFrameGrid of a DopeSheet to null");
+		if (this.grid != null)
+			this.grid.removeTableModelListener(this);
+		this.grid = grid;
+		grid.addTableModelListener(this);
+		updateSelection();
+		setScale(scale);
+		revalidate();
+		repaint();
+	}
+
+	/**
+	 * Simple getter.
+	 *
+	 * @return the grid being drawn
+	 */
+	public KeyFrameGrid getKeyFrameGrid() {
+		return grid;
+	}
+
+	/**
+	 * Simple getter.
+	 *
+	 * @return the number of pixels per millisecond
+	 */
+	public double getScale() {
+		return scale;
+	}
+
+	/**
+	 * Sets the number of pixels per millisecond. The scale is kept between
+	 * showing the whole grid and showing MIN_VISIBLE_TIME milliseconds across
+	 * the visible width.
+	 *
+	 * @param scale
+	 *            the new scale
+	 */
+	public void setScale(double scale) {
+		if (!(scale > 0))
+			throw new IllegalArgumentException("The scale must be positive: "
+					+ scale);
+		final int width = getVisibleWidth() - 2 * MARGIN;
+		if (width > 0) {
+			final double max = (double) width / MIN_VISIBLE_TIME;
+			final double min = Math.min(max, (double) width
+					/ Math.max(1, getEndTime()));
+			scale = Math.max(min, Math.min(max, scale));
+		}
+		if (scale != this.scale) {
+			this.scale = scale;
+			revalidate();
+			repaint();
+		}
+	}
+
+	/**
+	 * Zooms in or out, keeping the time under the given x coordinate where it
+	 * is.
+	 *
+	 * @param factor
+	 *            the amount to multiply the scale by
+	 * @param x
+	 *            the x coordinate to zoom around
+	 */
+	public void zoom(double factor, int x) {
+		final double time = (x - MARGIN) / scale;
+		final int offset = x - getVisibleRect().x;
+		setScale(scale * factor);
+		final Container parent = getParent();
+		if (parent instanceof JViewport) {
+			final JViewport viewport = (JViewport) parent;
+			// resize now, so the new view position is not clamped to the old size
+			viewport.setViewSize(getPreferredSize());
+			final int maxX = Math.max(0, getPreferredSize().width
+					- viewport.getExtentSize().width);
+			final int viewX = MARGIN + (int) (time * scale) - offset;
+			viewport.setViewPosition(new Point(Math.max(0, Math.min(maxX,
+					viewX)), viewport.getViewPosition().y));
+		}
+	}
+
+	/**
+	 * Zooms in around the middle of the visible part of the timeline.
+	 */
+	public void zoomIn() {
+		final Rectangle visible = getVisibleRect();
+		zoom(ZOOM_STEP, visible.x + visible.width / 2);
+	}
+
+	/**
+	 * Zooms out around the middle of the visible part of the timeline.
+	 */
+	public void zoomOut() {
+		final Rectangle visible = getVisibleRect();
+		zoom(1 / ZOOM_STEP, visible.x + visible.width / 2);
+	}
+
+	/**
+	 * Zooms out so that the whole grid is visible.
+	 */
+	public void zoomToFit() {
+		final int width = getVisibleWidth() - 2 * MARGIN;
+		if (width > 0)
+			setScale((double) width / Math.max(1, getEndTime()));
+	}
+
+	/**
+	 * Returns the KeyFrame whose mark is nearest to the given x coordinate, or
+	 * null if no mark is within reach.
+	 *
+	 * @param x
+	 *            the x coordinate
+	 * @return the KeyFrame at x, or null
+	 */
+	public KeyFrame getKeyFrameAt(int x) {
+		final long time = timeAt(x);
+		final KeyFrame before = grid.floor(time);
+		final KeyFrame after = grid.ceiling(time);
+		final int beforeDistance = (before == null) ? Integer.MAX_VALUE : x
+				- xAt(before.getTime());
+		final int afterDistance = (after == null) ? Integer.MAX_VALUE : xAt(after
+				.getTime())
+				- x;
+		if (Math.min(beforeDistance, afterDistance) > KEY_SIZE)
+			return null;
+		return (beforeDistance <= afterDistance) ? before : after;
+	}
+
+	@Override
+	public Dimension getPreferredSize() {
+		if (isPreferredSizeSet())
+			return super.getPreferredSize();
+		return new Dimension(xAt(getEndTime()) + MARGIN + 1, RULER_HEIGHT + 11
+				* ROW_HEIGHT);
+	}
+
+	public Dimension getPreferredScrollableViewportSize() {
+		return new Dimension(600, RULER_HEIGHT + 11 * ROW_HEIGHT);
+	}
+
+	public int getScrollableUnitIncrement(Rectangle visibleRect,
+			int orientation, int direction) {
+		return (orientation == SwingConstants.HORIZONTAL) ? MIN_TICK_SPACING
+				/ 4 : ROW_HEIGHT;
+	}
+
+	public int getScrollableBlockIncrement(Rectangle visibleRect,
+			int orientation, int direction) {
+		return (orientation == SwingConstants.HORIZONTAL) ? visibleRect.width
+				: visibleRect.height;
+	}
+
+	public boolean getScrollableTracksViewportWidth() {
+		return false;
+	}
+
+	public boolean getScrollableTracksViewportHeight() {
+		return false;
+	}
+
+	/**
+	 * Repaints the sheet, which only costs as much as the visible part of it.
+	 * Changes to times and to the KeyFrames of the grid may also change its
+	 * size.
+	 */
+	public void tableChanged(TableModelEvent e) {
+		if (e.getFirstRow() == TableModelEvent.HEADER_ROW) {
+			updateSelection();
+			revalidate();
+		} else if (e.getFirstRow() == 0) {
+			revalidate();
+		}
+		repaint();
+	}
+
+	/**
+	 * Follows the column selection of the table, scrolling the newly selected
+	 * KeyFrame into view.
+	 */
+	public void valueChanged(ListSelectionEvent e) {
+		if (e.getValueIsAdjusting())
+			return;
+		final KeyFrame old = selected;
+		updateSelection();
+		if (old == selected)
+			return;
+		repaint();
+		if (selected != null) {
+			final int x = xAt(selected.getTime());
+			scrollRectToVisible(new Rectangle(x - MARGIN, 0, 2 * MARGIN,
+					getHeight()));
+		}
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		final Rectangle clip = g.getClipBounds();
+		g.setColor(getBackground());
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+		paintRuler(g, clip);
+		paintKeyFrames(g, clip);
+	}
+
+	private void paintRuler(Graphics g, Rectangle clip) {
+		final Color gridColor = UIManager.getColor("Table.gridColor");
+		final int bottom = RULER_HEIGHT + 11 * ROW_HEIGHT;
+		g.setColor(gridColor);
+		for (int b = 0; b <= 11; b++) {
+			final int y = RULER_HEIGHT + b * ROW_HEIGHT - 1;
+			g.drawLine(clip.x, y, clip.x + clip.width, y);
+		}
+
+		final long spacing = getTickSpacing();
+		final long to = timeAt(clip.x + clip.width);
+		final FontMetrics metrics = g.getFontMetrics();
+		// start early enough to draw a label that runs into the clip
+		long time = Math.max(0, timeAt(clip.x - MIN_TICK_SPACING) / spacing)
+				* spacing;
+		for (; time <= to; time += spacing) {
+			final int x = xAt(time);
+			g.setColor(gridColor);
+			g.drawLine(x, RULER_HEIGHT - 6, x, bottom);
+			g.setColor(getForeground());
+			g.drawString(formatTime(time, spacing), x + 2, RULER_HEIGHT - 6
+					- metrics.getDescent());
+		}
+	}
+
+	private void paintKeyFrames(Graphics g, Rectangle clip) {
+		final KeyFrameGrid grid = this.grid;
+		if (selected != null) {
+			g.setColor(UIManager.getColor("Table.selectionBackground"));
+			g.fillRect(xAt(selected.getTime()) - KEY_SIZE - 1, RULER_HEIGHT,
+					2 * KEY_SIZE + 3, 11 * ROW_HEIGHT);
+		}
+
+		final long to = timeAt(clip.x + clip.width + KEY_SIZE + 1);
+		KeyFrame kf = grid.ceiling(Math.max(0, timeAt(clip.x - KEY_SIZE - 1)));
+		startSpans(kf, clip.x - 1);
+		final Color foreground = getForeground();
+		while (kf != null && kf.getTime() <= to) {
+			final int x = xAt(kf.getTime());
+			// merge the first few KeyFrames that fall in this group
+			int set = 0, ramped = 0, count = 0;
+			KeyFrame k = kf;
+			do {
+				for (int b = 0; b < 11; b++) {
+					if (k.isPositionSet(b)) {
+						set |= 1 << b;
+						if (k.isRamped(b))
+							ramped |= 1 << b;
+					}
+				}
+				k = k.getNextKeyFrame();
+				count++;
+			} while (k != null && count < MAX_KEYS_PER_GROUP
+					&& xAt(k.getTime()) < x + GROUP_WIDTH);
+
+			g.setColor(foreground);
+			for (int b = 0; b < 11; b++) {
+				if ((set & (1 << b)) == 0)
+					continue;
+				final int y = RULER_HEIGHT + b * ROW_HEIGHT + ROW_HEIGHT / 2;
+				if (spanStart[b] != NO_SPAN && x - spanStart[b] > 2 * KEY_SIZE)
+					g.drawLine(spanStart[b] + KEY_SIZE, y, x - KEY_SIZE, y);
+				spanStart[b] = x;
+				paintMark(g, x, y, (ramped & (1 << b)) != 0);
+			}
+
+			// skip whatever is left in this group
+			if (k != null && xAt(k.getTime()) < x + GROUP_WIDTH)
+				k = grid.ceiling(Math.max(timeAt(x + GROUP_WIDTH),
+						k.getTime() + 1));
+			kf = k;
+		}
+		if (kf != null)
+			finishSpans(g, kf, clip.x + clip.width + 1);
+	}
+
+	private void paintMark(Graphics g, int x, int y, boolean ramped) {
+		if (ramped) {
+			xPoints[0] = x;
+			yPoints[0] = y - KEY_SIZE - 1;
+			xPoints[1] = x + KEY_SIZE + 1;
+			yPoints[1] = y;
+			xPoints[2] = x;
+			yPoints[2] = y + KEY_SIZE + 1;
+			xPoints[3] = x - KEY_SIZE - 1;
+			yPoints[3] = y;
+			g.fillPolygon(xPoints, yPoints, 4);
+		} else {
+			g.fillRect(x - KEY_SIZE + 1, y - KEY_SIZE + 1, 2 * KEY_SIZE - 1,
+					2 * KEY_SIZE - 1);
+		}
+	}
+
+	/*
+	 * Starts a line at the left edge for every bone that is interpolated
+	 * through the first KeyFrame painted. That is the case when the KeyFrame is
+	 * not the first, and either sets the bone or has a later KeyFrame that
+	 * does, which is exactly when the grid shows something in its cell.
+	 */
+	private void startSpans(KeyFrame first, int left) {
+		if (first == null || first.getPrevKeyFrame() == null) {
+			for (int b = 0; b < 11; b++) {
+				spanStart[b] = NO_SPAN;
+			}
+			return;
+		}
+		final int column = grid.indexOf(first) + 1;
+		for (int b = 0; b < 11; b++) {
+			spanStart[b] = (grid.getValueAt(b + 1, column) != null) ? left
+					- KEY_SIZE : NO_SPAN;
+		}
+	}
+
+	/*
+	 * Carries on to the right edge the line of every bone that is set again
+	 * at or after the first KeyFrame past the clip.
+	 */
+	private void finishSpans(Graphics g, KeyFrame next, int right) {
+		final int column = grid.indexOf(next) + 1;
+		g.setColor(getForeground());
+		for (int b = 0; b < 11; b++) {
+			if (spanStart[b] != NO_SPAN
+					&& grid.getValueAt(b + 1, column) != null) {
+				final int y = RULER_HEIGHT + b * ROW_HEIGHT + ROW_HEIGHT / 2;
+				g.drawLine(spanStart[b] + KEY_SIZE, y, right, y);
+			}
+		}
+	}
+
+	private void updateSelection() {
+		final int column = selectionModel.getMinSelectionIndex();
+		selected = (column > 0 && column <= grid.size()) ? grid
+				.get(column - 1) : null;
+	}
+
+	private long getEndTime() {
+		return grid.last().getTime();
+	}
+
+	private int getVisibleWidth() {
+		final Container parent = getParent();
+		if (parent instanceof JViewport)
+			return ((JViewport) parent).getExtentSize().width;
+		return getWidth();
+	}
+
+	/*
+	 * The smallest of 1, 2 or 5 times a power of ten milliseconds that leaves
+	 * at least MIN_TICK_SPACING pixels between ticks.
+	 */
+	private long getTickSpacing() {
+		long spacing = 1;
+		while (true) {
+			if (spacing * scale >= MIN_TICK_SPACING)
+				return spacing;
+			if (2 * spacing * scale >= MIN_TICK_SPACING)
+				return 2 * spacing;
+			if (5 * spacing * scale >= MIN_TICK_SPACING)
+				return 5 * spacing;
+			spacing *= 10;
+		}
+	}
+
+	private static String formatTime(long time, long spacing) {
+		if (spacing % 1000 == 0)
+			return (time / 1000) + "s";
+		return (time / 1000.0) + "s";
+	}
+
+	private int xAt(long time) {
+		return MARGIN + (int) (time * scale);
+	}
+
+	/*
+	 * The earliest time drawn at or to the right of x.
+	 */
+	private long timeAt(int x) {
+		return (long) Math.ceil((x - MARGIN) / scale);
+	}
+
+	/*
+	 * The names of the bones, shown beside the rows of the sheet.
+	 */
+	private static class BoneNames extends JComponent {
+
+		BoneNames() {
+			setOpaque(true);
+			setBackground(UIManager.getColor("TableHeader.background"));
+			setForeground(UIManager.getColor("TableHeader.foreground"));
+			setFont(UIManager.getFont("TableHeader.font"));
+		}
+
+		@Override
+		public Dimension getPreferredSize() {
+			return new Dimension(40, RULER_HEIGHT + 11 * ROW_HEIGHT);
+		}
+
+		@Override
+		protected void paintComponent(Graphics g) {
+			g.setColor(getBackground());
+			g.fillRect(0, 0, getWidth(), getHeight());
+			g.setColor(getForeground());
+			final FontMetrics metrics = g.getFontMetrics();
+			for (int b = 0; b < 11; b++) {
+				g.drawString(KeyFrame.SHORT_BONE_NAMES[b], 4, RULER_HEIGHT + b
+						* ROW_HEIGHT + (ROW_HEIGHT + metrics.getAscent()) / 2
+						- 1);
+			}
+		}
+	}
+
+}
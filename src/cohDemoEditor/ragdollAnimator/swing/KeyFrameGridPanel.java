@@ -1,7 +1,12 @@
 package cohDemoEditor.ragdollAnimator.swing;
 
 import java.awt.*;
+import java.awt.event.*;
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.table.DefaultTableColumnModel;
+import javax.swing.table.TableColumnModel;
 import cohDemoEditor.ragdollAnimator.*;
 import cohDemoEditor.ragdollAnimator.swing.action.AddKeyFrameAction;
 import cohDemoEditor.ragdollAnimator.swing.action.RemoveKeyFrameAction;
@@ -9,7 +14,18 @@ import cohDemoEditor.ragdollAnimator.swing.action.RemoveKeyFrameAction;
 @SuppressWarnings("serial")
 public class KeyFrameGridPanel extends JPanel {
 
+	/**
+	 * Grids with more KeyFrames than this open on the timeline rather than the
+	 * table.
+	 */
+	public static final int TIMELINE_THRESHOLD = 2000;
+
+	private static final int TABLE_TAB = 0;
+	private static final int TIMELINE_TAB = 1;
+
 	private JTable table;
+	private DopeSheet dopeSheet;
+	private JTabbedPane tabs;
 	private AddKeyFrameAction addAction;
 	private RemoveKeyFrameAction removeAction;
 
@@ -19,6 +35,9 @@ public class KeyFrameGridPanel extends JPanel {
 					"Cannot construct a new KeyFrameGridPanel with a null KeyFrameGrid");
 		this.setLayout(new BorderLayout());
 		table = new JTable();
+		// the columns are only created once the table is shown; see
+		// updateColumns
+		table.setAutoCreateColumnsFromModel(false);
 		table.setModel(grid);
 		table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
 		table.setRowSelectionAllowed(false);
@@ -27,7 +46,42 @@ public class KeyFrameGridPanel extends JPanel {
 		final JScrollPane scrollPane = new JScrollPane(table,
 				JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
 				JScrollPane.HORIZONTAL_SCROLLBAR_ALWAYS);
-		this.add(scrollPane, BorderLayout.CENTER);
+
+		// the table needs a column per KeyFrame, which gets slow for large
+		// grids; the timeline only paints what is visible
+		dopeSheet = new DopeSheet(grid, table.getColumnModel()
+				.getSelectionModel());
+		final JPanel timelinePanel = new JPanel(new BorderLayout());
+		timelinePanel.add(dopeSheet.createScrollPane(), BorderLayout.CENTER);
+		final JPanel zoomPanel = new JPanel();
+		zoomPanel.setLayout(new BoxLayout(zoomPanel, BoxLayout.X_AXIS));
+		zoomPanel.add(new JButton(new AbstractAction("Zoom In") {
+			public void actionPerformed(ActionEvent e) {
+				dopeSheet.zoomIn();
+			}
+		}));
+		zoomPanel.add(new JButton(new AbstractAction("Zoom Out") {
+			public void actionPerformed(ActionEvent e) {
+				dopeSheet.zoomOut();
+			}
+		}));
+		zoomPanel.add(new JButton(new AbstractAction("Whole Clip") {
+			public void actionPerformed(ActionEvent e) {
+				dopeSheet.zoomToFit();
+			}
+		}));
+		timelinePanel.add(zoomPanel, BorderLayout.SOUTH);
+
+		tabs = new JTabbedPane();
+		tabs.addTab("Table", scrollPane);
+		tabs.addTab("Timeline", timelinePanel);
+		tabs.addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				updateColumns();
+			}
+		});
+		showDefaultTab(grid);
+		this.add(tabs, BorderLayout.CENTER);
 		final JPanel buttonPanel = new JPanel();
 		buttonPanel.setLayout(new BoxLayout(buttonPanel, BoxLayout.X_AXIS));
 
@@ -46,9 +100,63 @@ public class KeyFrameGridPanel extends JPanel {
 		return table;
 	}
 
+	public DopeSheet getDopeSheet() {
+		return dopeSheet;
+	}
+
 	public void setKeyFrameGrid(KeyFrameGrid grid) {
+		// start from no columns, rather than have the table remove the old
+		// grid's columns one at a time
+		table.setAutoCreateColumnsFromModel(false);
+		replaceColumnModel();
 		table.setModel(grid);
-		table.getColumnModel().getSelectionModel().setSelectionInterval(0, 1);		
+		dopeSheet.setKeyFrameGrid(grid);
+		showDefaultTab(grid);
+		table.getColumnModel().getSelectionModel().setSelectionInterval(0, 1);
 	}
-	
+
+	/*
+	 * Shows the timeline for large grids and the table otherwise, and brings
+	 * the table's columns up to date.
+	 */
+	private void showDefaultTab(KeyFrameGrid grid) {
+		tabs.setSelectedIndex(grid.size() > TIMELINE_THRESHOLD ? TIMELINE_TAB
+				: TABLE_TAB);
+		updateColumns();
+	}
+
+	/*
+	 * The table needs a TableColumn per KeyFrame, and rebuilds all of them
+	 * every time a KeyFrame is added or removed. So it only keeps them while
+	 * it is shown. While the timeline is shown, the table has no columns and
+	 * ignores the grid's structure changes; it still shares its column
+	 * selection with the timeline and everything else listening to it.
+	 */
+	private void updateColumns() {
+		final boolean showTable = tabs.getSelectedIndex() == TABLE_TAB;
+		if (showTable == table.getAutoCreateColumnsFromModel())
+			return;
+		if (showTable) {
+			// the column model is empty, so this only adds columns and leaves
+			// the selection alone
+			table.setAutoCreateColumnsFromModel(true);
+		} else {
+			table.setAutoCreateColumnsFromModel(false);
+			replaceColumnModel();
+		}
+	}
+
+	/*
+	 * Gives the table a new, empty TableColumnModel that keeps the same
+	 * selection model, and disconnects the old one from it.
+	 */
+	private void replaceColumnModel() {
+		final TableColumnModel old = table.getColumnModel();
+		final TableColumnModel columns = new DefaultTableColumnModel();
+		columns.setSelectionModel(old.getSelectionModel());
+		columns.setColumnSelectionAllowed(old.getColumnSelectionAllowed());
+		table.setColumnModel(columns);
+		old.setSelectionModel(new DefaultListSelectionModel());
+	}
+
 }
@@ -122,21 +122,18 @@ public class KeyFramePanel extends JPanel implements ListSelectionListener {
 			return;
 		}
 		lastKeyFrameIndex = keyFrameIndex;
-		keyFrame.removeTableModelListener(grid);
 		keyFrame = grid.get(keyFrameIndex);
-		keyFrame.addTableModelListener(grid);
 		keyFrameTable.setModel(keyFrame);
 
 	}
 
 	/**
-	 * Sets the key frame grid to listen to.
+	 * Sets the key frame grid to listen to. The grid already listens to each of
+	 * its own key frames, so edits made through this panel reach it directly.
 	 * 
 	 * @param grid
 	 */
 	public void setKeyFrameGrid(KeyFrameGrid grid) {
-		keyFrame.removeTableModelListener(this.grid);
-		keyFrame.addTableModelListener(grid);
 		this.grid = grid;
 		lastKeyFrameIndex = 0;
 		valueChanged(null);
@@ -2,12 +2,17 @@ package cohDemoEditor.ragdollAnimator.swing;
 
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
 
 import javax.media.j3d.*;
 import javax.swing.*;
 import javax.vecmath.Vector3d;
 
 import cohDemoEditor.ragdollAnimator.*;
+import cohDemoEditor.ragdollAnimator.bind.EditJournal;
 import cohDemoEditor.ragdollAnimator.j3d.*;
 import cohDemoEditor.ragdollAnimator.swing.action.*;
 
@@ -20,9 +25,20 @@ public class RagdollAnimator extends JFrame {
 	private JDialog xFrame, yFrame, zFrame;
 	private final KeyFramePanel kfPanel;
 	private final KeyFrameGridPanel kfgPanel;
+	private EditJournal journal;
+	// false if an unrecoverable journal could not be set aside, so that a new
+	// journal would delete it
+	private boolean journaling = true;
 
 	public static final int DEFAULT_CANVAS_SIZE = 250;
 
+	/**
+	 * The directory in which edits are journaled, so that the last session can
+	 * be recovered on startup.
+	 */
+	public static final File JOURNAL_DIRECTORY = new File(System
+			.getProperty("user.home"), ".ragdollAnimator");
+
 	private static RagdollAnimator ragdollAnimator;
 
 	public static RagdollAnimator getRagdollAnimator() {
@@ -41,6 +57,7 @@ public class RagdollAnimator extends JFrame {
 		kfgPanel.setKeyFrameGrid(grid);
 		kfPanel.setKeyFrameGrid(grid);
 		interpolator.setKeyFrameGrid(grid);
+		startJournal();
 	}
 
 	public Figure getFigure() {
@@ -77,6 +94,18 @@ public class RagdollAnimator extends JFrame {
 //			}
 			grid.add(kf);
 		}
+		final String recoveryMessage = recover();
+		if (recoveryMessage != null) {
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					JOptionPane.showMessageDialog(RagdollAnimator.this,
+							recoveryMessage, "Recovery",
+							journaling ? JOptionPane.INFORMATION_MESSAGE
+									: JOptionPane.WARNING_MESSAGE);
+				}
+			});
+		}
 
 		interpolator = figure.getInterpolator();
 		interpolator.setKeyFrameGrid(grid);
@@ -166,9 +195,11 @@ public class RagdollAnimator extends JFrame {
 		final Action stopAction = new StopAnimationAction(figure.getBehavior(),
 				universe);
 		playPanel.add(new JButton(stopAction));
-		final Action saveAction = new SaveAction();
+		final JFileChooser chooser = new JFileChooser();
+		chooser.setSelectedFile(new File(SaveAction.DEFAULT_FILE_NAME));
+		final Action saveAction = new SaveAction(chooser);
 		playPanel.add(new JButton(saveAction));
-		final Action loadAction = new LoadAction(kfgPanel, kfPanel);
+		final Action loadAction = new LoadAction(chooser);
 		playPanel.add(new JButton(loadAction));
 		final Action exportAction = new ExportAction(figure.getInterpolator());
 		playPanel.add(new JButton(exportAction));
@@ -184,6 +215,76 @@ public class RagdollAnimator extends JFrame {
 		this.setLocation(0, DEFAULT_CANVAS_SIZE);
 		this.setSize(750, 350);
 		this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		this.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosing(WindowEvent e) {
+				stopJournal();
+			}
+		});
+		startJournal();
+	}
+
+	/*
+	 * Replaces the grid with the one recorded by the last session's journal, if
+	 * there is one. If it cannot be recovered, its files are moved aside so
+	 * that the new journal does not delete them, or, failing that, journaling
+	 * is turned off. Returns a message for the user, or null if there was
+	 * nothing to recover.
+	 */
+	private String recover() {
+		try {
+			final KeyFrameGrid recovered = EditJournal
+					.recover(JOURNAL_DIRECTORY);
+			if (recovered == null)
+				return null;
+			this.grid = recovered;
+			return "The animation from your last session (" + grid.size()
+					+ " keyframes) has been restored from " + JOURNAL_DIRECTORY
+					+ ".";
+		} catch (IOException e) {
+			e.printStackTrace();
+			final String problem = "The animation from your last session could not be recovered:\n"
+					+ e.getMessage() + "\n";
+			try {
+				final File aside = EditJournal.setAside(JOURNAL_DIRECTORY);
+				return problem + "Its files have been moved to " + aside
+						+ ".\nYou are editing a new animation.";
+			} catch (IOException e2) {
+				e2.printStackTrace();
+				journaling = false;
+				return problem
+						+ "Its files have been left in "
+						+ JOURNAL_DIRECTORY
+						+ ", and edits will not be autosaved until they are moved.\n"
+						+ e2.getMessage();
+			}
+		}
+	}
+
+	/*
+	 * Starts journaling the edits of the current grid, replacing any earlier
+	 * journal.
+	 */
+	private void startJournal() {
+		stopJournal();
+		if (!journaling)
+			return;
+		try {
+			journal = new EditJournal(JOURNAL_DIRECTORY, grid);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void stopJournal() {
+		if (journal == null)
+			return;
+		try {
+			journal.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		journal = null;
 	}
 
 	/**
@@ -1,61 +1,55 @@
 package cohDemoEditor.ragdollAnimator.swing.action;
 
 import java.awt.event.ActionEvent;
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.io.File;
 
 import javax.swing.Action;
-import javax.xml.bind.*;
+import javax.swing.JFileChooser;
 
 import cohDemoEditor.ragdollAnimator.KeyFrameGrid;
-import cohDemoEditor.ragdollAnimator.bind.KeyFrameGridWrapper;
-import cohDemoEditor.ragdollAnimator.bind.KeyFrameGridXmlAdapter;
-import cohDemoEditor.ragdollAnimator.swing.*;
+import cohDemoEditor.ragdollAnimator.bind.KeyFramePersistence;
+import cohDemoEditor.ragdollAnimator.swing.RagdollAnimator;
 
 /**
- * This is a temporary load action.
+ * Loads an animation from an XML or .ragdoll file chosen by the user. The
+ * file is read in the background, and the animation is only replaced once it
+ * has been loaded completely.
+ * 
  * @author Darren
- *
+ * 
  */
 @SuppressWarnings("serial")
 public class LoadAction extends javax.swing.AbstractAction {
 
-	private KeyFrameGridPanel kfgPanel;
-	private KeyFramePanel kfPanel;
-	
-	public LoadAction(KeyFrameGridPanel kfgPanel, KeyFramePanel kfPanel) {
-		this.kfgPanel = kfgPanel;
-		this.kfPanel = kfPanel;
+	private final JFileChooser chooser;
+
+	public LoadAction(JFileChooser chooser) {
+		if (chooser == null)
+			throw new IllegalArgumentException(
+					"LoadAction requires a non-null JFileChooser.");
+		this.chooser = chooser;
 		putValue(Action.NAME, "Load");
-		putValue(Action.SHORT_DESCRIPTION, "Loads from the default XML file");
+		putValue(Action.SHORT_DESCRIPTION, "Loads the animation from XML or .ragdoll");
 	}
-	
-	// TODO: fix this
+
 	@Override
 	public void actionPerformed(ActionEvent ae) {
-		if (kfgPanel == null || kfPanel == null) return;
-		try {
-			FileInputStream fis = new FileInputStream(SaveAction.DEFAULT_FILE_NAME);
-			JAXBContext context = JAXBContext.newInstance(KeyFrameGridWrapper.class);
-			Unmarshaller u = context.createUnmarshaller();
-			Object obj = u.unmarshal(fis);
-			if (obj instanceof KeyFrameGridWrapper) {
-				final KeyFrameGrid kfg = (new KeyFrameGridXmlAdapter()).unmarshal(((KeyFrameGridWrapper) obj));
-				RagdollAnimator.getRagdollAnimator().setKeyFrameGrid(kfg);
-			} else {
-				throw new RuntimeException("Unmarshalled non-keyframegrid");
+		final RagdollAnimator animator = RagdollAnimator.getRagdollAnimator();
+		if (chooser.showOpenDialog(animator) != JFileChooser.APPROVE_OPTION)
+			return;
+		final File file = chooser.getSelectedFile();
+		new PersistenceWorker<KeyFrameGrid>(animator, "Loading "
+				+ file.getName()) {
+			@Override
+			protected KeyFrameGrid doInBackground() throws Exception {
+				return KeyFramePersistence.getInstance().load(file, this);
+			}
+
+			@Override
+			protected void succeeded(KeyFrameGrid grid) {
+				animator.setKeyFrameGrid(grid);
 			}
-			fis.close();
-		} catch (JAXBException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} 
+		}.execute();
 	}
 
 }
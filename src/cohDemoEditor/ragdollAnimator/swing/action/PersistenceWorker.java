@@ -0,0 +1,129 @@
+package cohDemoEditor.ragdollAnimator.swing.action;
+
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+import cohDemoEditor.ragdollAnimator.bind.KeyFramePersistence;
+
+/**
+ * Runs a save or load off the event dispatch thread. A ProgressMonitor shows
+ * the progress and lets the user cancel, and any error is shown in a dialog
+ * once the work is done.
+ * 
+ * @param <T>
+ *            the result of the work
+ */
+abstract class PersistenceWorker<T> extends SwingWorker<T, Void> implements
+		KeyFramePersistence.Progress {
+
+	private final Component parent;
+	private final String title;
+	private final ProgressMonitor monitor;
+	private final Timer cancelTimer;
+	// guarded by this; once committed, the work can no longer be cancelled
+	private boolean committed = false;
+
+	/**
+	 * Creates a new PersistenceWorker. This must be called on the event
+	 * dispatch thread.
+	 * 
+	 * @param parent
+	 *            the component to show the progress and errors over
+	 * @param title
+	 *            what is being done, such as "Saving animate.xml"
+	 */
+	PersistenceWorker(Component parent, String title) {
+		this.parent = parent;
+		this.title = title;
+		// one more than the largest progress, so the monitor stays open (and
+		// can still cancel) after the last progress, until done closes it
+		this.monitor = new ProgressMonitor(parent, title, null, 0, 101);
+		addPropertyChangeListener(new PropertyChangeListener() {
+			@Override
+			public void propertyChange(PropertyChangeEvent evt) {
+				if ("progress".equals(evt.getPropertyName())) {
+					monitor.setProgress((Integer) evt.getNewValue());
+					if (monitor.isCanceled())
+						requestCancel();
+				}
+			}
+		});
+		// the progress may stop changing for a while, for example while a
+		// loaded grid is being built, so the cancel button is also polled
+		cancelTimer = new Timer(200, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				monitor.setProgress(getProgress());
+				if (monitor.isCanceled())
+					requestCancel();
+			}
+		});
+		cancelTimer.start();
+	}
+
+	/**
+	 * Called on the worker thread as work is done.
+	 */
+	@Override
+	public void progress(long done, long total) {
+		if (total > 0)
+			setProgress((int) Math.min(100, 100 * done / total));
+	}
+
+	/**
+	 * Called on the worker thread just before a save replaces its file. Once
+	 * this has returned true, the user can no longer cancel.
+	 */
+	@Override
+	public synchronized boolean commit() {
+		if (isCancelled())
+			return false;
+		committed = true;
+		return true;
+	}
+
+	private synchronized void requestCancel() {
+		if (!committed)
+			cancel(false);
+	}
+
+	/**
+	 * Called on the event dispatch thread once the work has finished
+	 * successfully.
+	 * 
+	 * @param result
+	 *            the result of the work
+	 */
+	protected abstract void succeeded(T result);
+
+	@Override
+	protected final void done() {
+		cancelTimer.stop();
+		monitor.close();
+		try {
+			succeeded(get());
+		} catch (CancellationException e) {
+			// the user asked for this
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof CancellationException)
+				return;
+			JOptionPane.showMessageDialog(parent, title + " failed:\n"
+					+ cause.getLocalizedMessage(), title,
+					JOptionPane.ERROR_MESSAGE);
+		}
+	}
+
+}
@@ -1,20 +1,21 @@
 package cohDemoEditor.ragdollAnimator.swing.action;
 
 import java.awt.event.ActionEvent;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.io.File;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
-import javax.xml.bind.*;
+import javax.swing.JFileChooser;
 
 import cohDemoEditor.ragdollAnimator.bind.KeyFrameGridWrapper;
-import cohDemoEditor.ragdollAnimator.bind.KeyFrameGridXmlAdapter;
+import cohDemoEditor.ragdollAnimator.bind.KeyFramePersistence;
 import cohDemoEditor.ragdollAnimator.swing.RagdollAnimator;
 
 /**
- * This is a temporary save action.
+ * Saves the animation to a file chosen by the user, in the compact binary
+ * format if its name ends in .ragdoll and in XML otherwise. The KeyFrames are
+ * copied right away, and then written out in the background so that the
+ * animation can still be edited while it is being saved.
  * 
  * @author Darren
  * 
@@ -24,31 +25,36 @@ public class SaveAction extends AbstractAction {
 
 	public static final String DEFAULT_FILE_NAME = "animate.xml";
 
-	public SaveAction() {
+	private final JFileChooser chooser;
+
+	public SaveAction(JFileChooser chooser) {
+		if (chooser == null)
+			throw new IllegalArgumentException(
+					"SaveAction requires a non-null JFileChooser.");
+		this.chooser = chooser;
 		putValue(Action.NAME, "Save");
-		putValue(Action.SHORT_DESCRIPTION, "Save the animation to XML");
+		putValue(Action.SHORT_DESCRIPTION, "Save the animation to XML or .ragdoll");
 	}
 
 	@Override
 	public void actionPerformed(ActionEvent ae) {
-		FileOutputStream fos;
-		try {
-			final KeyFrameGridWrapper grid = (new KeyFrameGridXmlAdapter()).marshal(RagdollAnimator.getRagdollAnimator().getKeyFrameGrid());
-			fos = new FileOutputStream(DEFAULT_FILE_NAME);
-			JAXBContext context = JAXBContext.newInstance(KeyFrameGridWrapper.class);
-			Marshaller m = context.createMarshaller();
-			m.marshal(grid, fos);
-			fos.close();
-		} catch (JAXBException e1) {
-			e1.printStackTrace();
-		} catch (FileNotFoundException e2) {
-			e2.printStackTrace();
-		} catch (IOException e3) {
-			e3.printStackTrace();
-		} catch (Exception e4) {
-			// TODO Auto-generated catch block
-			e4.printStackTrace();
-		}
+		final RagdollAnimator animator = RagdollAnimator.getRagdollAnimator();
+		if (chooser.showSaveDialog(animator) != JFileChooser.APPROVE_OPTION)
+			return;
+		final File file = chooser.getSelectedFile();
+		final KeyFrameGridWrapper snapshot = KeyFramePersistence
+				.snapshot(animator.getKeyFrameGrid());
+		new PersistenceWorker<Void>(animator, "Saving " + file.getName()) {
+			@Override
+			protected Void doInBackground() throws Exception {
+				KeyFramePersistence.getInstance().save(snapshot, file, this);
+				return null;
+			}
+
+			@Override
+			protected void succeeded(Void result) {
+			}
+		}.execute();
 	}
 
 }